@@ -88,6 +88,18 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
         private static final int SET_CONTROL_LINE_STATE = 0x22;
         private static final int SEND_BREAK = 0x23;
 
+        private static final int SERIAL_STATE = 0x20;  // USB CDC 1.1 section 6.3.5
+        private static final int NOTIFICATION_HEADER_LENGTH = 8;
+
+        // SERIAL_STATE bits.
+        private static final int SERIAL_STATE_RX_CARRIER = 0x01;
+        private static final int SERIAL_STATE_TX_CARRIER = 0x02;
+        private static final int SERIAL_STATE_BREAK = 0x04;
+        private static final int SERIAL_STATE_RING_SIGNAL = 0x08;
+        private static final int SERIAL_STATE_FRAMING = 0x10;
+        private static final int SERIAL_STATE_PARITY = 0x20;
+        private static final int SERIAL_STATE_OVERRUN = 0x40;
+
         public CdcAcmSerialPort(UsbDevice device, int portNumber) {
             super(device, portNumber);
             mEnableAsyncReads = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1);
@@ -155,6 +167,66 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
             }
             mConnection.close();
             mConnection = null;
+            resetModemLines();
+        }
+
+        @Override
+        public int getCapabilities() {
+            return getStatusEndpointCapabilities();
+        }
+
+        /**
+         * Notifications arrive on the interrupt endpoint of the control
+         * interface.
+         */
+        @Override
+        public UsbEndpoint getStatusEndpoint() {
+            if (mConnection == null
+                    || mControlEndpoint.getDirection() != UsbConstants.USB_DIR_IN) {
+                return null;
+            }
+            return mControlEndpoint;
+        }
+
+        @Override
+        public void onStatusData(byte[] notification, int length) {
+            if (length < NOTIFICATION_HEADER_LENGTH + 1
+                    || (notification[1] & 0xff) != SERIAL_STATE) {
+                return;
+            }
+            final int state = notification[NOTIFICATION_HEADER_LENGTH] & 0xff;
+
+            int lines = 0;
+            if ((state & SERIAL_STATE_RX_CARRIER) != 0) {
+                lines |= MODEM_LINE_CD;
+            }
+            if ((state & SERIAL_STATE_TX_CARRIER) != 0) {
+                lines |= MODEM_LINE_DSR;
+            }
+            if ((state & SERIAL_STATE_RING_SIGNAL) != 0) {
+                lines |= MODEM_LINE_RI;
+            }
+
+            int lineStatus = 0;
+            if ((state & SERIAL_STATE_OVERRUN) != 0) {
+                lineStatus |= LINE_STATUS_OVERRUN;
+            }
+            if ((state & SERIAL_STATE_PARITY) != 0) {
+                lineStatus |= LINE_STATUS_PARITY;
+            }
+            if ((state & SERIAL_STATE_FRAMING) != 0) {
+                lineStatus |= LINE_STATUS_FRAMING;
+            }
+            if ((state & SERIAL_STATE_BREAK) != 0) {
+                lineStatus |= LINE_STATUS_BREAK;
+            }
+            onLineStatus(lineStatus, LINE_STATUS_OFFSET_UNKNOWN);
+            onModemLines(lines);
+        }
+
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection == null ? null : mReadEndpoint;
         }
 
         @Override
@@ -207,18 +279,18 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
         }
 
         @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
+        public int write(byte[] src, int length, int timeoutMillis) throws IOException {
             // TODO(mikey): Nearly identical to FtdiSerial write. Refactor.
             int offset = 0;
 
-            while (offset < src.length) {
+            while (offset < length) {
                 final int writeLength;
                 final int amtWritten;
 
                 synchronized (mWriteBufferLock) {
                     final byte[] writeBuffer;
 
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
+                    writeLength = Math.min(length - offset, mWriteBuffer.length);
                     if (offset == 0) {
                         writeBuffer = src;
                     } else {
@@ -232,7 +304,7 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
                 }
                 if (amtWritten <= 0) {
                     throw new IOException("Error writing " + writeLength
-                            + " bytes at offset " + offset + " length=" + src.length);
+                            + " bytes at offset " + offset + " length=" + length);
                 }
 
                 Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
@@ -272,9 +344,14 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
             sendAcmControlMessage(SET_LINE_CODING, 0, msg);
         }
 
+        private boolean testModemLine(int line) {
+            final int lines = getModemLines();
+            return lines >= 0 && (lines & line) != 0;
+        }
+
         @Override
         public boolean getCD() throws IOException {
-            return false;  // TODO
+            return testModemLine(MODEM_LINE_CD);
         }
 
         @Override
@@ -284,7 +361,7 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
 
         @Override
         public boolean getDSR() throws IOException {
-            return false;  // TODO
+            return testModemLine(MODEM_LINE_DSR);
         }
 
         @Override
@@ -300,7 +377,7 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
 
         @Override
         public boolean getRI() throws IOException {
-            return false;  // TODO
+            return testModemLine(MODEM_LINE_RI);
         }
 
         @Override
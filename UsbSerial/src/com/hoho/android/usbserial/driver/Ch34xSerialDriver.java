@@ -144,6 +144,11 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 		}
 
 
+		@Override
+		public UsbEndpoint getReadEndpoint() {
+			return mConnection == null ? null : mReadEndpoint;
+		}
+
 		@Override
 		public int read(byte[] dest, int timeoutMillis) throws IOException {
 			final int numBytesRead;
@@ -164,17 +169,17 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 		}
 
 		@Override
-		public int write(byte[] src, int timeoutMillis) throws IOException {
+		public int write(byte[] src, int length, int timeoutMillis) throws IOException {
 			int offset = 0;
 
-			while (offset < src.length) {
+			while (offset < length) {
 				final int writeLength;
 				final int amtWritten;
 
 				synchronized (mWriteBufferLock) {
 					final byte[] writeBuffer;
 
-					writeLength = Math.min(src.length - offset, mWriteBuffer.length);
+					writeLength = Math.min(length - offset, mWriteBuffer.length);
 					if (offset == 0) {
 						writeBuffer = src;
 					} else {
@@ -188,7 +193,7 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 				}
 				if (amtWritten <= 0) {
 					throw new IOException("Error writing " + writeLength
-							+ " bytes at offset " + offset + " length=" + src.length);
+							+ " bytes at offset " + offset + " length=" + length);
 				}
 
 				Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
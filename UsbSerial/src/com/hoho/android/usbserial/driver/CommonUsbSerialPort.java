@@ -22,7 +22,9 @@
 package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbDevice;
+import android.os.Build;
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
 
 import java.io.IOException;
 
@@ -51,6 +53,12 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
     /** Internal write buffer.  Guarded by {@link #mWriteBufferLock}. */
     protected byte[] mWriteBuffer;
 
+    private volatile LineStatusListener mLineStatusListener;
+    private volatile ModemLineListener mModemLineListener;
+
+    /** Last reported modem lines, -1 if unknown.  Guarded by 'this'. */
+    private int mModemLines = -1;
+
     public CommonUsbSerialPort(UsbDevice device, int portNumber) {
         mDevice = device;
         mPortNumber = portNumber;
@@ -129,7 +137,57 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
     public abstract int read(final byte[] dest, final int timeoutMillis) throws IOException;
 
     @Override
-    public abstract int write(final byte[] src, final int timeoutMillis) throws IOException;
+    public int write(final byte[] src, final int timeoutMillis) throws IOException {
+        return write(src, src.length, timeoutMillis);
+    }
+
+    @Override
+    public abstract int write(final byte[] src, final int length, final int timeoutMillis)
+            throws IOException;
+
+    @Override
+    public UsbDeviceConnection getConnection() {
+        return mConnection;
+    }
+
+    @Override
+    public abstract UsbEndpoint getReadEndpoint();
+
+    /**
+     * Most drivers don't add any framing to received data.
+     */
+    @Override
+    public int filterReadData(byte[] data, int length) {
+        return length;
+    }
+
+    /**
+     * Most drivers report status in the read data or not at all.
+     */
+    @Override
+    public UsbEndpoint getStatusEndpoint() {
+        return null;
+    }
+
+    @Override
+    public void onStatusData(byte[] data, int length) {
+    }
+
+    @Override
+    public void setStatusEndpointServiced(boolean serviced) {
+    }
+
+    /**
+     * Returns {@link #CAPABILITY_MODEM_LINE_EVENTS} for drivers that report modem
+     * lines on {@link #getStatusEndpoint()}, if the platform lets it be read with
+     * queued requests.
+     */
+    protected static int getStatusEndpointCapabilities() {
+        // Received length isn't reported by UsbRequest on older platforms,
+        // see http://b.android.com/28023
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1
+                ? CAPABILITY_MODEM_LINE_EVENTS : 0;
+    }
 
     @Override
     public abstract void setParameters(
@@ -164,4 +222,97 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
         return !flushReadBuffers && !flushWriteBuffers;
     }
 
+    /**
+     * Most drivers can't be tuned.
+     */
+    @Override
+    public int getCapabilities() {
+        return 0;
+    }
+
+    @Override
+    public boolean setLatencyTimer(int latencyMillis) throws IOException {
+        return false;
+    }
+
+    @Override
+    public int getLatencyTimer() throws IOException {
+        return -1;
+    }
+
+    @Override
+    public boolean setReadTransferSize(int size) throws IOException {
+        return false;
+    }
+
+    @Override
+    public int getReadTransferSize() {
+        return 0;
+    }
+
+    @Override
+    public boolean setEventChar(int eventChar, boolean enabled) throws IOException {
+        return false;
+    }
+
+    @Override
+    public void setLineStatusListener(LineStatusListener listener) {
+        mLineStatusListener = listener;
+    }
+
+    @Override
+    public void setModemLineListener(ModemLineListener listener) {
+        mModemLineListener = listener;
+    }
+
+    protected ModemLineListener getModemLineListener() {
+        return mModemLineListener;
+    }
+
+    /**
+     * Reports the modem lines to the listener if they changed, see
+     * {@link ModemLineListener#onModemLinesChanged(UsbSerialPort, int, int)}.
+     */
+    protected void onModemLines(int lines) {
+        final int changed;
+        synchronized (this) {
+            if (lines == mModemLines) {
+                return;
+            }
+            changed = mModemLines < 0 ? lines : lines ^ mModemLines;
+            mModemLines = lines;
+        }
+        final ModemLineListener listener = mModemLineListener;
+        if (listener != null) {
+            listener.onModemLinesChanged(this, lines, changed);
+        }
+    }
+
+    /**
+     * Returns the last reported modem lines, or -1 if none were reported since the port was
+     * opened.
+     */
+    protected synchronized int getModemLines() {
+        return mModemLines;
+    }
+
+    /**
+     * Forgets the reported modem lines, the next report is the initial state.
+     * Should be called when the port is closed.
+     */
+    protected synchronized void resetModemLines() {
+        mModemLines = -1;
+    }
+
+    /**
+     * Reports line errors to the listener, see
+     * {@link LineStatusListener#onLineStatus(UsbSerialPort, int, int)}.
+     */
+    protected void onLineStatus(int status, int offset) {
+        final LineStatusListener listener = mLineStatusListener;
+        if (listener != null && status != 0) {
+            listener.onLineStatus(this, status, offset);
+        }
+    }
+
 }
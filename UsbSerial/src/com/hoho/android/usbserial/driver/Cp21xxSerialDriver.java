@@ -177,6 +177,11 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
             }
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection == null ? null : mReadEndpoint;
+        }
+
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
             final int numBytesRead;
@@ -197,17 +202,17 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
         }
 
         @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
+        public int write(byte[] src, int length, int timeoutMillis) throws IOException {
             int offset = 0;
 
-            while (offset < src.length) {
+            while (offset < length) {
                 final int writeLength;
                 final int amtWritten;
 
                 synchronized (mWriteBufferLock) {
                     final byte[] writeBuffer;
 
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
+                    writeLength = Math.min(length - offset, mWriteBuffer.length);
                     if (offset == 0) {
                         writeBuffer = src;
                     } else {
@@ -221,7 +226,7 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
                 }
                 if (amtWritten <= 0) {
                     throw new IOException("Error writing " + writeLength
-                            + " bytes at offset " + offset + " length=" + src.length);
+                            + " bytes at offset " + offset + " length=" + length);
                 }
 
                 Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
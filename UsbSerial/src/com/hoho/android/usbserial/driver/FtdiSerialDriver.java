@@ -25,6 +25,7 @@ import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
@@ -32,6 +33,7 @@ import com.hoho.android.usbserial.util.HexDump;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -95,7 +97,7 @@ import java.util.Map;
 public class FtdiSerialDriver implements UsbSerialDriver {
 
     private final UsbDevice mDevice;
-    private final UsbSerialPort mPort;
+    private final List<UsbSerialPort> mPorts;
 
     /**
      * FTDI chip types.
@@ -104,9 +106,17 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         TYPE_BM, TYPE_AM, TYPE_2232C, TYPE_R, TYPE_2232H, TYPE_4232H;
     }
 
+    /**
+     * Multi-port chips (2232C/H, 4232H) have an interface per port, each one
+     * is exposed as a separate {@link UsbSerialPort}.
+     */
     public FtdiSerialDriver(UsbDevice device) {
         mDevice = device;
-        mPort = new FtdiSerialPort(mDevice, 0);
+        final List<UsbSerialPort> ports = new ArrayList<UsbSerialPort>();
+        for (int i = 0; i < Math.max(1, mDevice.getInterfaceCount()); i++) {
+            ports.add(new FtdiSerialPort(mDevice, i));
+        }
+        mPorts = Collections.unmodifiableList(ports);
     }
     @Override
     public UsbDevice getDevice() {
@@ -115,7 +125,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
     @Override
     public List<UsbSerialPort> getPorts() {
-        return Collections.singletonList(mPort);
+        return mPorts;
     }
 
     private class FtdiSerialPort extends CommonUsbSerialPort {
@@ -162,6 +172,29 @@ public class FtdiSerialDriver implements UsbSerialDriver {
          */
         private static final int SIO_SET_DATA_REQUEST = 4;
 
+        /**
+         * Get the modem status.
+         */
+        private static final int SIO_POLL_MODEM_STATUS_REQUEST = 5;
+
+        /**
+         * Set the event character.
+         */
+        private static final int SIO_SET_EVENT_CHAR_REQUEST = 6;
+
+        /**
+         * Set the latency timer.
+         */
+        private static final int SIO_SET_LATENCY_TIMER_REQUEST = 9;
+
+        /**
+         * Get the latency timer.
+         */
+        private static final int SIO_GET_LATENCY_TIMER_REQUEST = 10;
+
+        private static final int MIN_LATENCY_TIMER_MILLIS = 1;
+        private static final int MAX_LATENCY_TIMER_MILLIS = 255;
+
         private static final int SIO_RESET_SIO = 0;
         private static final int SIO_RESET_PURGE_RX = 1;
         private static final int SIO_RESET_PURGE_TX = 2;
@@ -177,13 +210,48 @@ public class FtdiSerialDriver implements UsbSerialDriver {
          */
         private static final int MODEM_STATUS_HEADER_LENGTH = 2;
 
+        /**
+         * Line status bits, the second byte of the modem status header.
+         */
+        private static final int LINE_STATUS_IDX = 1;
+        private static final int LINE_STATUS_OE = 0x02;
+        private static final int LINE_STATUS_PE = 0x04;
+        private static final int LINE_STATUS_FE = 0x08;
+        private static final int LINE_STATUS_BI = 0x10;
+
+        /**
+         * Modem status bits, the first byte of the modem status header.
+         */
+        private static final int MODEM_STATUS_IDX = 0;
+        private static final int MODEM_STATUS_CTS = 0x10;
+        private static final int MODEM_STATUS_DSR = 0x20;
+        private static final int MODEM_STATUS_RI = 0x40;
+        private static final int MODEM_STATUS_RLSD = 0x80;
+
         private final String TAG = FtdiSerialDriver.class.getSimpleName();
 
+        /** Offset of bcdDevice in the device descriptor. */
+        private static final int DESCRIPTOR_BCD_DEVICE_OFFSET = 12;
+
+        /** Offset of iSerialNumber in the device descriptor. */
+        private static final int DESCRIPTOR_SERIAL_NUMBER_OFFSET = 16;
+
         private DeviceType mType;
 
-        private int mInterface = 0; /* INTERFACE_ANY */
+        /**
+         * wIndex of vendor requests: 0 on single port chips, otherwise the
+         * port (1 for A, 2 for B, etc).
+         */
+        private final int mIndex;
+
+        private UsbEndpoint mReadEndpoint;
+        private UsbEndpoint mWriteEndpoint;
+
+        /** 64 on full speed chips, 512 on high speed (H series) chips. */
+        private int mMaxPacketSize = 64;
 
-        private int mMaxPacketSize = 64; // TODO(mikey): detect
+        /** Size of bulk IN transfers, 0 to use the whole read buffer. */
+        private int mReadTransferSize = 0;
 
         /**
          * Due to http://b.android.com/28023 , we cannot use UsbRequest async reads
@@ -194,6 +262,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
         public FtdiSerialPort(UsbDevice device, int portNumber) {
             super(device, portNumber);
+            mIndex = device.getInterfaceCount() > 1 ? portNumber + 1 : 0;
         }
 
         @Override
@@ -202,7 +271,9 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         }
 
         /**
-         * Filter FTDI status bytes from buffer
+         * Filter FTDI status bytes from buffer and report line errors. The chip
+         * reports errors per packet, like Linux we attribute them to the last
+         * byte of the packet.
          * @param src The source buffer (which contains status bytes)
          * @param dest The destination buffer to write the status bytes into (can be src)
          * @param totalBytesRead Number of bytes read to src
@@ -212,30 +283,123 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         private final int filterStatusBytes(byte[] src, byte[] dest, int totalBytesRead, int maxPacketSize) {
             final int packetsCount = totalBytesRead / maxPacketSize + (totalBytesRead % maxPacketSize == 0 ? 0 : 1);
             for (int packetIdx = 0; packetIdx < packetsCount; ++packetIdx) {
+                // The last packet may be a full one as well.
                 final int count = (packetIdx == (packetsCount - 1))
-                        ? (totalBytesRead % maxPacketSize) - MODEM_STATUS_HEADER_LENGTH
+                        ? totalBytesRead - packetIdx * maxPacketSize - MODEM_STATUS_HEADER_LENGTH
                         : maxPacketSize - MODEM_STATUS_HEADER_LENGTH;
+                final int destOffset = packetIdx * (maxPacketSize - MODEM_STATUS_HEADER_LENGTH);
+                // Read before the packet data is moved over it.
+                final int lineStatus = src[packetIdx * maxPacketSize + LINE_STATUS_IDX];
+                final int modemStatus = src[packetIdx * maxPacketSize + MODEM_STATUS_IDX];
                 if (count > 0) {
                     System.arraycopy(src,
                             packetIdx * maxPacketSize + MODEM_STATUS_HEADER_LENGTH,
                             dest,
-                            packetIdx * (maxPacketSize - MODEM_STATUS_HEADER_LENGTH),
+                            destOffset,
                             count);
                 }
+                onLineStatus(toLineStatus(lineStatus),
+                        count > 0 ? destOffset + count - 1 : LINE_STATUS_OFFSET_UNKNOWN);
+                onModemLines(toModemLines(modemStatus));
             }
 
           return totalBytesRead - (packetsCount * 2);
         }
 
+        private int toModemLines(int ftdiModemStatus) {
+            int lines = 0;
+            if ((ftdiModemStatus & MODEM_STATUS_CTS) != 0) {
+                lines |= MODEM_LINE_CTS;
+            }
+            if ((ftdiModemStatus & MODEM_STATUS_DSR) != 0) {
+                lines |= MODEM_LINE_DSR;
+            }
+            if ((ftdiModemStatus & MODEM_STATUS_RI) != 0) {
+                lines |= MODEM_LINE_RI;
+            }
+            if ((ftdiModemStatus & MODEM_STATUS_RLSD) != 0) {
+                lines |= MODEM_LINE_CD;
+            }
+            return lines;
+        }
+
+        private int pollModemLines() throws IOException {
+            final byte[] status = new byte[2];
+            int result = mConnection.controlTransfer(FTDI_DEVICE_IN_REQTYPE,
+                    SIO_POLL_MODEM_STATUS_REQUEST, 0, mIndex,
+                    status, status.length, USB_READ_TIMEOUT_MILLIS);
+            if (result != status.length) {
+                throw new IOException("Polling modem status failed: result=" + result);
+            }
+            return toModemLines(status[MODEM_STATUS_IDX]);
+        }
+
+        private int toLineStatus(int ftdiLineStatus) {
+            int status = 0;
+            if ((ftdiLineStatus & LINE_STATUS_OE) != 0) {
+                status |= LINE_STATUS_OVERRUN;
+            }
+            if ((ftdiLineStatus & LINE_STATUS_PE) != 0) {
+                status |= LINE_STATUS_PARITY;
+            }
+            if ((ftdiLineStatus & LINE_STATUS_FE) != 0) {
+                status |= LINE_STATUS_FRAMING;
+            }
+            if ((ftdiLineStatus & LINE_STATUS_BI) != 0) {
+                status |= LINE_STATUS_BREAK;
+            }
+            return status;
+        }
+
+        @Override
+        public int filterReadData(byte[] data, int length) {
+            if (length < MODEM_STATUS_HEADER_LENGTH) {
+                return 0;
+            }
+            return filterStatusBytes(data, data, length, mMaxPacketSize);
+        }
+
         public void reset() throws IOException {
             int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_RESET_REQUEST,
-                    SIO_RESET_SIO, 0 /* index */, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+                    SIO_RESET_SIO, mIndex, null, 0, USB_WRITE_TIMEOUT_MILLIS);
             if (result != 0) {
                 throw new IOException("Reset failed: result=" + result);
             }
+        }
 
-            // TODO(mikey): autodetect.
-            mType = DeviceType.TYPE_R;
+        /**
+         * Detects the chip type from bcdDevice, the same way libftdi does.
+         */
+        private DeviceType detectDeviceType() {
+            final byte[] descriptors = mConnection.getRawDescriptors();
+            if (descriptors == null
+                    || descriptors.length <= DESCRIPTOR_SERIAL_NUMBER_OFFSET) {
+                Log.w(TAG, "No device descriptor, assuming " + DeviceType.TYPE_R);
+                return DeviceType.TYPE_R;
+            }
+            final int bcdDevice = (descriptors[DESCRIPTOR_BCD_DEVICE_OFFSET] & 0xff)
+                    | (descriptors[DESCRIPTOR_BCD_DEVICE_OFFSET + 1] & 0xff) << 8;
+            final boolean hasSerialNumber = descriptors[DESCRIPTOR_SERIAL_NUMBER_OFFSET] != 0;
+            switch (bcdDevice) {
+                case 0x400:
+                    return DeviceType.TYPE_BM;
+                case 0x200:
+                    // BM chips with an unprogrammed EEPROM report 0x200 as well.
+                    return hasSerialNumber ? DeviceType.TYPE_AM : DeviceType.TYPE_BM;
+                case 0x500:
+                    return DeviceType.TYPE_2232C;
+                case 0x600:
+                    return DeviceType.TYPE_R;
+                case 0x700:
+                    return DeviceType.TYPE_2232H;
+                case 0x800:
+                    return DeviceType.TYPE_4232H;
+                default:
+                    // E.g. 0x1000 for FT-X, its baud rate divisors match R chips.
+                    Log.w(TAG, "Unknown bcdDevice: 0x" + Integer.toHexString(bcdDevice)
+                            + ", assuming " + DeviceType.TYPE_R);
+                    return DeviceType.TYPE_R;
+            }
         }
 
         @Override
@@ -247,13 +411,26 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
             boolean opened = false;
             try {
-                for (int i = 0; i < mDevice.getInterfaceCount(); i++) {
-                    if (connection.claimInterface(mDevice.getInterface(i), true)) {
-                        Log.d(TAG, "claimInterface " + i + " SUCCESS");
+                final UsbInterface usbInterface = mDevice.getInterface(mPortNumber);
+                if (connection.claimInterface(usbInterface, true)) {
+                    Log.d(TAG, "claimInterface " + mPortNumber + " SUCCESS");
+                } else {
+                    throw new IOException("Error claiming interface " + mPortNumber);
+                }
+                for (int i = 0; i < usbInterface.getEndpointCount(); i++) {
+                    final UsbEndpoint endpoint = usbInterface.getEndpoint(i);
+                    if (endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+                        mReadEndpoint = endpoint;
                     } else {
-                        throw new IOException("Error claiming interface " + i);
+                        mWriteEndpoint = endpoint;
                     }
                 }
+                if (mReadEndpoint == null || mWriteEndpoint == null) {
+                    throw new IOException("Missing endpoints on interface " + mPortNumber);
+                }
+                mMaxPacketSize = mReadEndpoint.getMaxPacketSize();
+                mType = detectDeviceType();
+                Log.d(TAG, "Detected " + mType + ", max packet size " + mMaxPacketSize);
                 reset();
                 opened = true;
             } finally {
@@ -273,12 +450,18 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                 mConnection.close();
             } finally {
                 mConnection = null;
+                resetModemLines();
             }
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection == null ? null : mReadEndpoint;
+        }
+
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
-            final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(0);
+            final UsbEndpoint endpoint = mReadEndpoint;
 
             if (ENABLE_ASYNC_READS) {
                 final int readAmt;
@@ -311,7 +494,9 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                 final int totalBytesRead;
 
                 synchronized (mReadBufferLock) {
-                    final int readAmt = Math.min(dest.length, mReadBuffer.length);
+                    final int readAmt = Math.min(dest.length, mReadTransferSize > 0
+                            ? Math.min(mReadTransferSize, mReadBuffer.length)
+                            : mReadBuffer.length);
                     totalBytesRead = mConnection.bulkTransfer(endpoint, mReadBuffer,
                             readAmt, timeoutMillis);
 
@@ -319,24 +504,24 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                         throw new IOException("Expected at least " + MODEM_STATUS_HEADER_LENGTH + " bytes");
                     }
 
-                    return filterStatusBytes(mReadBuffer, dest, totalBytesRead, endpoint.getMaxPacketSize());
+                    return filterStatusBytes(mReadBuffer, dest, totalBytesRead, mMaxPacketSize);
                 }
             }
         }
 
         @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
-            final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(1);
+        public int write(byte[] src, int length, int timeoutMillis) throws IOException {
+            final UsbEndpoint endpoint = mWriteEndpoint;
             int offset = 0;
 
-            while (offset < src.length) {
+            while (offset < length) {
                 final int writeLength;
                 final int amtWritten;
 
                 synchronized (mWriteBufferLock) {
                     final byte[] writeBuffer;
 
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
+                    writeLength = Math.min(length - offset, mWriteBuffer.length);
                     if (offset == 0) {
                         writeBuffer = src;
                     } else {
@@ -351,7 +536,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
                 if (amtWritten <= 0) {
                     throw new IOException("Error writing " + writeLength
-                            + " bytes at offset " + offset + " length=" + src.length);
+                            + " bytes at offset " + offset + " length=" + length);
                 }
 
                 Log.d(TAG, "Wrote amtWritten=" + amtWritten + " attempted=" + writeLength);
@@ -416,7 +601,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             }
 
             int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
-                    SIO_SET_DATA_REQUEST, config, 0 /* index */,
+                    SIO_SET_DATA_REQUEST, config, mIndex,
                     null, 0, USB_WRITE_TIMEOUT_MILLIS);
             if (result != 0) {
                 throw new IOException("Setting parameters failed: result=" + result);
@@ -498,7 +683,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                     || mType == DeviceType.TYPE_4232H) {
                 index = (encodedDivisor >> 8) & 0xffff;
                 index &= 0xFF00;
-                index |= 0 /* TODO mIndex */;
+                index |= mIndex;
             } else {
                 index = (encodedDivisor >> 16) & 0xffff;
             }
@@ -511,17 +696,17 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
         @Override
         public boolean getCD() throws IOException {
-            return false;
+            return (pollModemLines() & MODEM_LINE_CD) != 0;
         }
 
         @Override
         public boolean getCTS() throws IOException {
-            return false;
+            return (pollModemLines() & MODEM_LINE_CTS) != 0;
         }
 
         @Override
         public boolean getDSR() throws IOException {
-            return false;
+            return (pollModemLines() & MODEM_LINE_DSR) != 0;
         }
 
         @Override
@@ -535,7 +720,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
         @Override
         public boolean getRI() throws IOException {
-            return false;
+            return (pollModemLines() & MODEM_LINE_RI) != 0;
         }
 
         @Override
@@ -551,7 +736,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         public boolean purgeHwBuffers(boolean purgeReadBuffers, boolean purgeWriteBuffers) throws IOException {
             if (purgeReadBuffers) {
                 int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_RESET_REQUEST,
-                        SIO_RESET_PURGE_RX, 0 /* index */, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+                        SIO_RESET_PURGE_RX, mIndex, null, 0, USB_WRITE_TIMEOUT_MILLIS);
                 if (result != 0) {
                     throw new IOException("Flushing RX failed: result=" + result);
                 }
@@ -559,13 +744,77 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
             if (purgeWriteBuffers) {
                 int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_RESET_REQUEST,
-                        SIO_RESET_PURGE_TX, 0 /* index */, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+                        SIO_RESET_PURGE_TX, mIndex, null, 0, USB_WRITE_TIMEOUT_MILLIS);
                 if (result != 0) {
                     throw new IOException("Flushing RX failed: result=" + result);
                 }
             }
             return true;
         }
+
+        @Override
+        public int getCapabilities() {
+            return CAPABILITY_LATENCY_TIMER | CAPABILITY_TRANSFER_SIZE | CAPABILITY_EVENT_CHAR
+                    | CAPABILITY_MODEM_LINE_EVENTS;
+        }
+
+        @Override
+        public boolean setLatencyTimer(int latencyMillis) throws IOException {
+            if (latencyMillis < MIN_LATENCY_TIMER_MILLIS
+                    || latencyMillis > MAX_LATENCY_TIMER_MILLIS) {
+                throw new IllegalArgumentException("Latency timer out of range: " + latencyMillis);
+            }
+            int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                    SIO_SET_LATENCY_TIMER_REQUEST, latencyMillis, mIndex,
+                    null, 0, USB_WRITE_TIMEOUT_MILLIS);
+            if (result != 0) {
+                throw new IOException("Setting latency timer failed: result=" + result);
+            }
+            return true;
+        }
+
+        @Override
+        public int getLatencyTimer() throws IOException {
+            final byte[] latency = new byte[1];
+            int result = mConnection.controlTransfer(FTDI_DEVICE_IN_REQTYPE,
+                    SIO_GET_LATENCY_TIMER_REQUEST, 0, mIndex,
+                    latency, latency.length, USB_READ_TIMEOUT_MILLIS);
+            if (result != latency.length) {
+                throw new IOException("Getting latency timer failed: result=" + result);
+            }
+            return latency[0] & 0xff;
+        }
+
+        /**
+         * Every packet of the transfer starts with the modem status header, so
+         * the transfer is a whole number of packets.
+         */
+        @Override
+        public boolean setReadTransferSize(int size) throws IOException {
+            final int packetSize = mMaxPacketSize;
+            if (size < packetSize) {
+                size = packetSize;
+            }
+            mReadTransferSize = (size + packetSize - 1) / packetSize * packetSize;
+            return true;
+        }
+
+        @Override
+        public int getReadTransferSize() {
+            return mReadTransferSize;
+        }
+
+        @Override
+        public boolean setEventChar(int eventChar, boolean enabled) throws IOException {
+            final int value = (eventChar & 0xff) | (enabled ? 1 << 8 : 0);
+            int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                    SIO_SET_EVENT_CHAR_REQUEST, value, mIndex,
+                    null, 0, USB_WRITE_TIMEOUT_MILLIS);
+            if (result != 0) {
+                throw new IOException("Setting event char failed: result=" + result);
+            }
+            return true;
+        }
     }
 
     public static Map<Integer, int[]> getSupportedDevices() {
@@ -573,6 +822,8 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         supportedDevices.put(Integer.valueOf(UsbId.VENDOR_FTDI),
                 new int[] {
                     UsbId.FTDI_FT232R,
+                    UsbId.FTDI_FT2232,
+                    UsbId.FTDI_FT4232H,
                     UsbId.FTDI_FT231X,
                 });
         return supportedDevices;
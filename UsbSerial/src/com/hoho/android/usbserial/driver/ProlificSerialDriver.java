@@ -97,10 +97,15 @@ public class ProlificSerialDriver implements UsbSerialDriver {
 
         private static final int STATUS_FLAG_CD = 0x01;
         private static final int STATUS_FLAG_DSR = 0x02;
+        private static final int STATUS_FLAG_BREAK = 0x04;
         private static final int STATUS_FLAG_RI = 0x08;
+        private static final int STATUS_FLAG_FRAMING = 0x10;
+        private static final int STATUS_FLAG_PARITY = 0x20;
+        private static final int STATUS_FLAG_OVERRUN = 0x40;
         private static final int STATUS_FLAG_CTS = 0x80;
 
         private static final int STATUS_BUFFER_SIZE = 10;
+        private static final int STATUS_READ_TIMEOUT_MILLIS = 100;
         private static final int STATUS_BYTE_IDX = 8;
 
         private static final int DEVICE_TYPE_HX = 0;
@@ -117,11 +122,9 @@ public class ProlificSerialDriver implements UsbSerialDriver {
 
         private int mBaudRate = -1, mDataBits = -1, mStopBits = -1, mParity = -1;
 
-        private int mStatus = 0;
-        private volatile Thread mReadStatusThread = null;
-        private final Object mReadStatusThreadLock = new Object();
-        boolean mStopReadStatusThread = false;
-        private IOException mReadStatusException = null;
+        private volatile int mStatus = 0;
+        // Set while the status endpoint is read by the caller, mStatus is current then.
+        private volatile boolean mStatusServiced = false;
 
 
         public ProlificSerialPort(UsbDevice device, int portNumber) {
@@ -199,65 +202,67 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             mControlLinesValue = newControlLinesValue;
         }
 
-        private final void readStatusThreadFunction() {
-            try {
-                while (!mStopReadStatusThread) {
-                    byte[] buffer = new byte[STATUS_BUFFER_SIZE];
-                    int readBytesCount = mConnection.bulkTransfer(mInterruptEndpoint,
-                            buffer,
-                            STATUS_BUFFER_SIZE,
-                            500);
-                    if (readBytesCount > 0) {
-                        if (readBytesCount == STATUS_BUFFER_SIZE) {
-                            mStatus = buffer[STATUS_BYTE_IDX] & 0xff;
-                        } else {
-                            throw new IOException(
-                                    String.format("Invalid CTS / DSR / CD / RI status buffer received, expected %d bytes, but received %d",
-                                            STATUS_BUFFER_SIZE,
-                                            readBytesCount));
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                mReadStatusException = e;
+        private int toModemLines(int status) {
+            int lines = 0;
+            if ((status & STATUS_FLAG_CTS) != 0) {
+                lines |= MODEM_LINE_CTS;
+            }
+            if ((status & STATUS_FLAG_DSR) != 0) {
+                lines |= MODEM_LINE_DSR;
             }
+            if ((status & STATUS_FLAG_RI) != 0) {
+                lines |= MODEM_LINE_RI;
+            }
+            if ((status & STATUS_FLAG_CD) != 0) {
+                lines |= MODEM_LINE_CD;
+            }
+            return lines;
         }
 
-        private final int getStatus() throws IOException {
-            if ((mReadStatusThread == null) && (mReadStatusException == null)) {
-                synchronized (mReadStatusThreadLock) {
-                    if (mReadStatusThread == null) {
-                        byte[] buffer = new byte[STATUS_BUFFER_SIZE];
-                        int readBytes = mConnection.bulkTransfer(mInterruptEndpoint,
-                                buffer,
-                                STATUS_BUFFER_SIZE,
-                                100);
-                        if (readBytes != STATUS_BUFFER_SIZE) {
-                            Log.w(TAG, "Could not read initial CTS / DSR / CD / RI status");
-                        } else {
-                            mStatus = buffer[STATUS_BYTE_IDX] & 0xff;
-                        }
+        private int toLineStatus(int status) {
+            int lineStatus = 0;
+            if ((status & STATUS_FLAG_OVERRUN) != 0) {
+                lineStatus |= LINE_STATUS_OVERRUN;
+            }
+            if ((status & STATUS_FLAG_PARITY) != 0) {
+                lineStatus |= LINE_STATUS_PARITY;
+            }
+            if ((status & STATUS_FLAG_FRAMING) != 0) {
+                lineStatus |= LINE_STATUS_FRAMING;
+            }
+            if ((status & STATUS_FLAG_BREAK) != 0) {
+                lineStatus |= LINE_STATUS_BREAK;
+            }
+            return lineStatus;
+        }
 
-                        mReadStatusThread = new Thread(new Runnable() {
-                            @Override
-                            public void run() {
-                                readStatusThreadFunction();
-                            }
-                        });
-                        mReadStatusThread.setDaemon(true);
-                        mReadStatusThread.start();
-                    }
-                }
+        private final int getStatus() throws IOException {
+            if (!mStatusServiced) {
+                // Nobody reads the status endpoint, the device may have a notification pending.
+                readStatus();
             }
+            return mStatus;
+        }
 
-            /* throw and clear an exception which occured in the status read thread */
-            IOException readStatusException = mReadStatusException;
-            if (mReadStatusException != null) {
-                mReadStatusException = null;
-                throw readStatusException;
+        private void readStatus() {
+            byte[] buffer = new byte[STATUS_BUFFER_SIZE];
+            int readBytes = mConnection.bulkTransfer(mInterruptEndpoint,
+                    buffer,
+                    STATUS_BUFFER_SIZE,
+                    STATUS_READ_TIMEOUT_MILLIS);
+            if (readBytes == STATUS_BUFFER_SIZE) {
+                onStatus(buffer);
+            } else if (readBytes > 0) {
+                Log.w(TAG, "Invalid CTS / DSR / CD / RI status buffer received, expected "
+                        + STATUS_BUFFER_SIZE + " bytes, but received " + readBytes);
             }
+        }
 
-            return mStatus;
+        private void onStatus(byte[] buffer) {
+            mStatus = buffer[STATUS_BYTE_IDX] & 0xff;
+            // Notifications aren't tied to bulk data.
+            onLineStatus(toLineStatus(mStatus), LINE_STATUS_OFFSET_UNKNOWN);
+            onModemLines(toModemLines(mStatus));
         }
 
         private final boolean testStatusFlag(int flag) throws IOException {
@@ -331,6 +336,8 @@ public class ProlificSerialDriver implements UsbSerialDriver {
                 resetDevice();
 
                 doBlackMagic();
+                // Notifications only come on changes, pick up the lines the device has now.
+                readStatus();
                 opened = true;
             } finally {
                 if (!opened) {
@@ -346,26 +353,43 @@ public class ProlificSerialDriver implements UsbSerialDriver {
                 throw new IOException("Already closed");
             }
             try {
-                mStopReadStatusThread = true;
-                synchronized (mReadStatusThreadLock) {
-                    if (mReadStatusThread != null) {
-                        try {
-                            mReadStatusThread.join();
-                        } catch (Exception e) {
-                            Log.w(TAG, "An error occured while waiting for status read thread", e);
-                        }
-                    }
-                }
                 resetDevice();
             } finally {
                 try {
                     mConnection.releaseInterface(mDevice.getInterface(0));
                 } finally {
                     mConnection = null;
+                    mStatus = 0;
+                    resetModemLines();
                 }
             }
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection == null ? null : mReadEndpoint;
+        }
+
+        @Override
+        public UsbEndpoint getStatusEndpoint() {
+            return mConnection == null ? null : mInterruptEndpoint;
+        }
+
+        @Override
+        public void onStatusData(byte[] data, int length) {
+            if (length != STATUS_BUFFER_SIZE) {
+                Log.w(TAG, "Invalid CTS / DSR / CD / RI status buffer received, expected "
+                        + STATUS_BUFFER_SIZE + " bytes, but received " + length);
+                return;
+            }
+            onStatus(data);
+        }
+
+        @Override
+        public void setStatusEndpointServiced(boolean serviced) {
+            mStatusServiced = serviced;
+        }
+
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
             synchronized (mReadBufferLock) {
@@ -381,17 +405,17 @@ public class ProlificSerialDriver implements UsbSerialDriver {
         }
 
         @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
+        public int write(byte[] src, int length, int timeoutMillis) throws IOException {
             int offset = 0;
 
-            while (offset < src.length) {
+            while (offset < length) {
                 final int writeLength;
                 final int amtWritten;
 
                 synchronized (mWriteBufferLock) {
                     final byte[] writeBuffer;
 
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
+                    writeLength = Math.min(length - offset, mWriteBuffer.length);
                     if (offset == 0) {
                         writeBuffer = src;
                     } else {
@@ -407,7 +431,7 @@ public class ProlificSerialDriver implements UsbSerialDriver {
                 if (amtWritten <= 0) {
                     throw new IOException("Error writing " + writeLength
                             + " bytes at offset " + offset + " length="
-                            + src.length);
+                            + length);
                 }
 
                 offset += amtWritten;
@@ -485,6 +509,11 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             mParity = parity;
         }
 
+        @Override
+        public int getCapabilities() {
+            return getStatusEndpointCapabilities();
+        }
+
         @Override
         public boolean getCD() throws IOException {
             return testStatusFlag(STATUS_FLAG_CD);
@@ -33,6 +33,8 @@ public final class UsbId {
 
     public static final int VENDOR_FTDI = 0x0403;
     public static final int FTDI_FT232R = 0x6001;
+    public static final int FTDI_FT2232 = 0x6010;  // FT2232C/D and FT2232H
+    public static final int FTDI_FT4232H = 0x6011;
     public static final int FTDI_FT231X = 0x6015;
 
     public static final int VENDOR_ATMEL = 0x03EB;
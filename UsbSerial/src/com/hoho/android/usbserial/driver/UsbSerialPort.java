@@ -22,6 +22,7 @@
 package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbManager;
 
 import java.io.IOException;
@@ -84,6 +85,73 @@ public interface UsbSerialPort {
     /** 2 stop bits. */
     public static final int STOPBITS_2 = 2;
 
+    /** Latency timer may be set, see {@link #setLatencyTimer(int)}. */
+    public static final int CAPABILITY_LATENCY_TIMER = 1;
+
+    /** Read transfer size may be set, see {@link #setReadTransferSize(int)}. */
+    public static final int CAPABILITY_TRANSFER_SIZE = 1 << 1;
+
+    /** Event character may be set, see {@link #setEventChar(int, boolean)}. */
+    public static final int CAPABILITY_EVENT_CHAR = 1 << 2;
+
+    /**
+     * Modem line changes are reported, see {@link #setModemLineListener}. Drivers
+     * with a {@link #getStatusEndpoint()} report them only while it is read, which
+     * needs {@link android.hardware.usb.UsbRequest} lengths, so they don't have the
+     * capability before Android 4.2.
+     */
+    public static final int CAPABILITY_MODEM_LINE_EVENTS = 1 << 3;
+
+    /** CTS (Clear To Send) modem line. */
+    public static final int MODEM_LINE_CTS = 1;
+
+    /** DSR (Data Set Ready) modem line. */
+    public static final int MODEM_LINE_DSR = 1 << 1;
+
+    /** RI (Ring Indicator) modem line. */
+    public static final int MODEM_LINE_RI = 1 << 2;
+
+    /** CD (Carrier Detect) modem line. */
+    public static final int MODEM_LINE_CD = 1 << 3;
+
+    /** Received data was lost because the device buffer was full. */
+    public static final int LINE_STATUS_OVERRUN = 1;
+
+    /** A byte was received with wrong parity. */
+    public static final int LINE_STATUS_PARITY = 1 << 1;
+
+    /** A byte was received without a valid stop bit. */
+    public static final int LINE_STATUS_FRAMING = 1 << 2;
+
+    /** The line was held low for longer than a character. */
+    public static final int LINE_STATUS_BREAK = 1 << 3;
+
+    /** Offset of a line status event that can't be tied to a received byte. */
+    public static final int LINE_STATUS_OFFSET_UNKNOWN = -1;
+
+    /**
+     * Receives line errors detected by the device.
+     */
+    public interface LineStatusListener {
+        /**
+         * Called when the device reports a line error.
+         *
+         * <p>
+         * Errors tied to a received byte are reported on the reading thread
+         * while {@link #read(byte[], int)} or {@link #filterReadData(byte[], int)}
+         * runs, before the data is returned. {@code offset} is then the index of
+         * the affected byte in the returned data. Otherwise {@code offset} is
+         * {@link #LINE_STATUS_OFFSET_UNKNOWN} and the call may come from any
+         * thread.
+         * </p>
+         *
+         * @param status a combination of {@link #LINE_STATUS_OVERRUN},
+         *            {@link #LINE_STATUS_PARITY}, {@link #LINE_STATUS_FRAMING}
+         *            and {@link #LINE_STATUS_BREAK}
+         */
+        public void onLineStatus(UsbSerialPort port, int status, int offset);
+    }
+
     public UsbSerialDriver getDriver();
     
     /**
@@ -133,6 +201,62 @@ public interface UsbSerialPort {
      */
     public int write(final byte[] src, final int timeoutMillis) throws IOException;
 
+    /**
+     * Writes the first {@code length} bytes of the source buffer.
+     *
+     * @param src the source byte buffer
+     * @param length number of bytes to write
+     * @param timeoutMillis the timeout for writing
+     * @return the actual number of bytes written
+     * @throws IOException if an error occurred during writing
+     */
+    public int write(final byte[] src, final int length, final int timeoutMillis)
+            throws IOException;
+
+    /**
+     * Returns the connection the port was opened with, or {@code null} if the port is closed.
+     */
+    public UsbDeviceConnection getConnection();
+
+    /**
+     * Returns the bulk IN endpoint that may be read with queued
+     * {@link android.hardware.usb.UsbRequest}s instead of {@link #read(byte[], int)}, or
+     * {@code null} if the port doesn't support it or is closed. Raw data of the endpoint must be
+     * passed through {@link #filterReadData(byte[], int)}.
+     */
+    public UsbEndpoint getReadEndpoint();
+
+    /**
+     * Removes driver specific framing (e.g. FTDI status bytes) from raw data received from
+     * {@link #getReadEndpoint()}, in place.
+     *
+     * @param data raw data, replaced with payload bytes
+     * @param length number of raw bytes
+     * @return number of payload bytes at the start of the buffer
+     */
+    public int filterReadData(byte[] data, int length);
+
+    /**
+     * Returns the interrupt IN endpoint on which the device reports modem lines and line
+     * errors, or {@code null} if the port has none or is closed. It may be read with queued
+     * {@link android.hardware.usb.UsbRequest}s on the same loop as {@link #getReadEndpoint()},
+     * received data must be passed to {@link #onStatusData(byte[], int)}.
+     */
+    public UsbEndpoint getStatusEndpoint();
+
+    /**
+     * Handles data received from {@link #getStatusEndpoint()} and reports it to the
+     * {@link ModemLineListener} and {@link LineStatusListener}.
+     */
+    public void onStatusData(byte[] data, int length);
+
+    /**
+     * Tells the port whether {@link #getStatusEndpoint()} is being read by the caller.
+     * While it isn't, the port may read the endpoint itself when modem lines are
+     * queried.
+     */
+    public void setStatusEndpointServiced(boolean serviced);
+
     /**
      * Sets various serial port parameters.
      *
@@ -225,4 +349,89 @@ public interface UsbSerialPort {
      */
     public boolean purgeHwBuffers(boolean flushRX, boolean flushTX) throws IOException;
 
+    /**
+     * Returns the tuning capabilities of the port.
+     *
+     * @return a combination of {@link #CAPABILITY_LATENCY_TIMER},
+     *         {@link #CAPABILITY_TRANSFER_SIZE} and {@link #CAPABILITY_EVENT_CHAR}
+     */
+    public int getCapabilities();
+
+    /**
+     * Sets how long the device holds received bytes before completing a read
+     * transfer that isn't full.
+     *
+     * @param latencyMillis the latency in milliseconds
+     * @return {@code true} if the operation was successful, or
+     * {@code false} if the operation is not supported by the driver or device
+     * @throws IOException if an error occurred while setting the timer
+     */
+    public boolean setLatencyTimer(int latencyMillis) throws IOException;
+
+    /**
+     * Gets the latency timer, see {@link #setLatencyTimer(int)}.
+     *
+     * @return the latency in milliseconds, or {@code -1} if not supported.
+     * @throws IOException if an error occurred while reading the timer
+     */
+    public int getLatencyTimer() throws IOException;
+
+    /**
+     * Sets the size of bulk IN transfers, i.e. the most data a single read
+     * transfer may complete with. Rounded up to the endpoint max packet size.
+     *
+     * @param size the transfer size in bytes
+     * @return {@code true} if the operation was successful, or
+     * {@code false} if the operation is not supported by the driver or device
+     * @throws IOException if an error occurred while setting the size
+     */
+    public boolean setReadTransferSize(int size) throws IOException;
+
+    /**
+     * Gets the read transfer size, see {@link #setReadTransferSize(int)}.
+     *
+     * @return the transfer size in bytes, or {@code 0} if not supported.
+     */
+    public int getReadTransferSize();
+
+    /**
+     * Sets the character that makes the device complete a read transfer as
+     * soon as it is received, without waiting for the latency timer.
+     *
+     * @param eventChar the character
+     * @param enabled {@code false} to disable the event character
+     * @return {@code true} if the operation was successful, or
+     * {@code false} if the operation is not supported by the driver or device
+     * @throws IOException if an error occurred while setting the character
+     */
+    public boolean setEventChar(int eventChar, boolean enabled) throws IOException;
+
+    /**
+     * Receives changes of the input modem lines.
+     */
+    public interface ModemLineListener {
+        /**
+         * Called when the device reports a change of the input modem lines,
+         * and once with the initial state. May be called from any thread.
+         *
+         * @param lines lines that are set, a combination of
+         *            {@link #MODEM_LINE_CTS}, {@link #MODEM_LINE_DSR},
+         *            {@link #MODEM_LINE_RI} and {@link #MODEM_LINE_CD}
+         * @param changed lines that changed since the previous call
+         */
+        public void onModemLinesChanged(UsbSerialPort port, int lines, int changed);
+    }
+
+    /**
+     * Sets the listener of modem line changes, or {@code null}. Drivers
+     * without {@link #CAPABILITY_MODEM_LINE_EVENTS} never call it.
+     */
+    public void setModemLineListener(ModemLineListener listener);
+
+    /**
+     * Sets the listener of line errors, or {@code null}. Drivers that can't
+     * detect line errors never call it.
+     */
+    public void setLineStatusListener(LineStatusListener listener);
+
 }
@@ -0,0 +1,279 @@
+/* Copyright 2011-2013 Google Inc.
+ * Copyright 2013 mike wakerly <opensource@hoho.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: https://github.com/mik3y/usb-serial-for-android
+ */
+
+package com.hoho.android.usbserial.util;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring of whole frames with many producers and a single consumer.
+ *
+ * <p>
+ * Each slot has preallocated storage for a frame, so neither side allocates. Slots
+ * carry sequence numbers: a producer claims a slot by advancing the tail with CAS,
+ * fills it and publishes it by bumping the slot sequence; the consumer takes
+ * published slots in order and hands them back by bumping the sequence again (see
+ * Dmitry Vyukov's bounded MPMC queue).
+ * </p>
+ *
+ * <p>
+ * A full ring never throws, producers get {@link Result#BLOCKED} and may retry.
+ * </p>
+ */
+public class FrameRing {
+
+    /** Outcome of {@link #offer}. */
+    public enum Result {
+        /** Frame is queued. */
+        ACCEPTED,
+        /** Ring is full, frame isn't queued and may be offered again later. */
+        BLOCKED,
+        /** Frame can never be queued, it's larger than a slot or the ring is closed. */
+        DROPPED
+    }
+
+    // Producers wait for a free slot in steps of this length.
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final int mCapacity;
+    private final int mMask;
+    private final int mMaxFrameSize;
+
+    private final byte[][] mFrames;
+    private final int[] mLengths;
+    private final long[] mEnqueuedNanos;
+    private final AtomicLongArray mSequences;
+
+    private final AtomicLong mTail = new AtomicLong();
+    // Accessed only by the consumer, other threads may read it for stats.
+    private volatile long mHead;
+
+    private volatile Thread mWaitingConsumer;
+    private volatile boolean mClosed;
+
+    private final AtomicLong mAcceptedCount = new AtomicLong();
+    private final AtomicLong mBlockedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mHighWaterMark = new AtomicLong();
+
+    /**
+     * @param capacity number of frames, rounded up to a power of two
+     * @param maxFrameSize size of the largest frame that may be offered
+     */
+    public FrameRing(int capacity, int maxFrameSize) {
+        if (capacity < 1 || maxFrameSize < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity
+                    + " or max frame size: " + maxFrameSize);
+        }
+        int roundedCapacity = 1;
+        while (roundedCapacity < capacity) {
+            roundedCapacity <<= 1;
+        }
+        mCapacity = roundedCapacity;
+        mMask = mCapacity - 1;
+        mMaxFrameSize = maxFrameSize;
+        mFrames = new byte[mCapacity][maxFrameSize];
+        mLengths = new int[mCapacity];
+        mEnqueuedNanos = new long[mCapacity];
+        mSequences = new AtomicLongArray(mCapacity);
+        for (int i = 0; i < mCapacity; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Queues a copy of the frame without waiting. May be called from any thread.
+     */
+    public Result offer(byte[] data, int offset, int length) {
+        return count(tryOffer(data, offset, length));
+    }
+
+    /**
+     * Queues a copy of the frame, waiting up to {@code timeoutMillis} for a free slot
+     * if the ring is full.
+     */
+    public Result offer(byte[] data, int offset, int length, long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Result result;
+        while ((result = tryOffer(data, offset, length)) == Result.BLOCKED
+                && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+        }
+        return count(result);
+    }
+
+    private Result count(Result result) {
+        switch (result) {
+            case ACCEPTED:
+                mAcceptedCount.incrementAndGet();
+                break;
+            case BLOCKED:
+                mBlockedCount.incrementAndGet();
+                break;
+            case DROPPED:
+                mDroppedCount.incrementAndGet();
+                break;
+        }
+        return result;
+    }
+
+    private Result tryOffer(byte[] data, int offset, int length) {
+        if (length > mMaxFrameSize || mClosed) {
+            return Result.DROPPED;
+        }
+
+        while (true) {
+            final long tail = mTail.get();
+            final int index = (int) tail & mMask;
+            final long diff = mSequences.get(index) - tail;
+            if (diff == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    System.arraycopy(data, offset, mFrames[index], 0, length);
+                    mLengths[index] = length;
+                    mEnqueuedNanos[index] = SystemClock.elapsedRealtimeNanos();
+                    // Publishes the slot to the consumer.
+                    mSequences.set(index, tail + 1);
+                    onAccepted(tail + 1);
+                    return Result.ACCEPTED;
+                }
+            } else if (diff < 0) {
+                return Result.BLOCKED;
+            }
+            // Another producer claimed the slot, try the next one.
+        }
+    }
+
+    private void onAccepted(long newTail) {
+        final long depth = newTail - mHead;
+        long max;
+        while (depth > (max = mHighWaterMark.get())
+                && !mHighWaterMark.compareAndSet(max, depth)) { }
+
+        final Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Receives the frame taken from the ring, frame data is valid only during the call.
+     */
+    public interface FrameConsumer {
+        public void onFrame(byte[] frame, int length, long enqueuedNanos) throws Exception;
+    }
+
+    /**
+     * Takes the oldest frame, waiting until one is available or the ring is closed.
+     * Must be called only from the consumer thread.
+     *
+     * @return {@code false} if the ring is closed.
+     */
+    public boolean take(FrameConsumer consumer) throws Exception {
+        if (mClosed) {
+            return false;
+        }
+        final long head = mHead;
+        final int index = (int) head & mMask;
+        while (mSequences.get(index) != head + 1) {
+            if (mClosed) {
+                return false;
+            }
+            mWaitingConsumer = Thread.currentThread();
+            // Re-check after announcing ourselves, a producer may have published meanwhile.
+            if (mSequences.get(index) != head + 1 && !mClosed) {
+                LockSupport.park(this);
+            }
+            mWaitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        try {
+            consumer.onFrame(mFrames[index], mLengths[index], mEnqueuedNanos[index]);
+        } finally {
+            // Hands the slot back to producers for the next lap.
+            mSequences.set(index, head + mCapacity);
+            mHead = head + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Rejects all further frames and wakes up the consumer. Frames that are already
+     * queued are dropped.
+     */
+    public void close() {
+        mClosed = true;
+        final Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    /** Number of queued frames, approximate while producers are active. */
+    public int size() {
+        return (int) Math.max(0, Math.min(mCapacity, mTail.get() - mHead));
+    }
+
+    public long getAcceptedCount() {
+        return mAcceptedCount.get();
+    }
+
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /** The largest number of frames that were queued at once. */
+    public long getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FrameRing { size: " + size() + "/" + mCapacity
+                + ", high water mark: " + getHighWaterMark()
+                + ", accepted: " + getAcceptedCount()
+                + ", blocked: " + getBlockedCount()
+                + ", dropped: " + getDroppedCount() + " }";
+    }
+}
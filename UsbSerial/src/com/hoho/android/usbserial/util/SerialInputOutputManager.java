@@ -21,7 +21,11 @@
 
 package com.hoho.android.usbserial.util;
 
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbRequest;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.hoho.android.usbserial.driver.UsbSerialPort;
@@ -41,14 +45,28 @@ public class SerialInputOutputManager implements Runnable {
     private static final boolean DEBUG = true;
 
     private static final int READ_WAIT_MILLIS = 200;
+    private static final int WRITE_WAIT_MILLIS = 200;
     private static final int BUFSIZ = 4096;
 
+    // Same memory as the former 4096 byte write buffer.
+    public static final int DEFAULT_WRITE_RING_CAPACITY = 16;
+    public static final int DEFAULT_MAX_WRITE_FRAME_SIZE = 256;
+
+    // Requests kept queued on the read endpoint when reading with UsbRequests.
+    private static final int READ_REQUEST_COUNT = 4;
+    private static final int READ_REQUEST_SIZE = 512;
+    // Requests kept queued on the status endpoint, see UsbSerialPort#getStatusEndpoint().
+    private static final int STATUS_REQUEST_COUNT = 2;
+    private static final int STATUS_REQUEST_SIZE = 64;
+
     private final UsbSerialPort mDriver;
 
     private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFSIZ);
 
-    // Synchronized by 'mWriteBuffer'
-    private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFSIZ);
+    // Replaced by run() after a stop, written under 'this'.
+    private volatile FrameRing mWriteRing;
+
+    private volatile Exception mWriteError;
 
     public enum State {
         STOPPED,
@@ -62,6 +80,9 @@ public class SerialInputOutputManager implements Runnable {
     // Synchronized by 'this'
     private Listener mListener;
 
+    // Synchronized by 'this', non-null while reading with UsbRequests.
+    private UsbRequestLoop mRequestLoop;
+
     public interface Listener {
         /**
          * Called when new incoming data is available.
@@ -75,6 +96,46 @@ public class SerialInputOutputManager implements Runnable {
         public void onRunError(Exception e);
     }
 
+    /**
+     * Listener that also receives the time when incoming data was read from the port.
+     */
+    public interface TimestampedListener extends Listener {
+        /**
+         * Called when new incoming data is available.
+         *
+         * @param timestampNanos {@link SystemClock#elapsedRealtimeNanos()} when the read
+         *            completed
+         */
+        public void onNewData(byte[] data, long timestampNanos);
+
+        /**
+         * Called on the writer thread when data passed to {@link #writeAsync(byte[])}
+         * is handed over to the device.
+         *
+         * @param enqueuedNanos {@link SystemClock#elapsedRealtimeNanos()} when the
+         *            data was enqueued
+         * @param writtenNanos {@link SystemClock#elapsedRealtimeNanos()} when the
+         *            write completed
+         */
+        public void onDataWritten(int length, long enqueuedNanos, long writtenNanos);
+    }
+
+    /**
+     * Listener that receives incoming data straight from the read buffer, without
+     * copying it into a new array.
+     */
+    public interface BufferListener extends TimestampedListener {
+        /**
+         * Called when new incoming data is available. The buffer is reused for the
+         * next read, so data is valid only for the duration of the call and must not
+         * be modified.
+         *
+         * @param timestampNanos {@link SystemClock#elapsedRealtimeNanos()} when the read
+         *            completed
+         */
+        public void onNewData(byte[] buffer, int offset, int length, long timestampNanos);
+    }
+
     /**
      * Creates a new instance with no listener.
      */
@@ -86,8 +147,20 @@ public class SerialInputOutputManager implements Runnable {
      * Creates a new instance with the provided listener.
      */
     public SerialInputOutputManager(UsbSerialPort driver, Listener listener) {
+        this(driver, listener, DEFAULT_WRITE_RING_CAPACITY, DEFAULT_MAX_WRITE_FRAME_SIZE);
+    }
+
+    /**
+     * Creates a new instance with the provided listener and size of the write ring.
+     *
+     * @param writeRingCapacity number of writes that may wait for the writer thread
+     * @param maxWriteFrameSize size of the largest write
+     */
+    public SerialInputOutputManager(UsbSerialPort driver, Listener listener,
+            int writeRingCapacity, int maxWriteFrameSize) {
         mDriver = driver;
         mListener = listener;
+        mWriteRing = new FrameRing(writeRingCapacity, maxWriteFrameSize);
     }
 
     public synchronized void setListener(Listener listener) {
@@ -98,17 +171,52 @@ public class SerialInputOutputManager implements Runnable {
         return mListener;
     }
 
-    public void writeAsync(byte[] data) {
-        synchronized (mWriteBuffer) {
-            mWriteBuffer.put(data);
-        }
+    /**
+     * Queues the data to be written as a single write, without waiting. May be called
+     * from any thread.
+     *
+     * @return {@link FrameRing.Result#BLOCKED} if too many writes are pending,
+     *         {@link FrameRing.Result#DROPPED} if the data is larger than
+     *         {@code maxWriteFrameSize} or the manager is stopped.
+     */
+    public FrameRing.Result writeAsync(byte[] data) {
+        return writeAsync(data, 0, data.length);
+    }
+
+    public FrameRing.Result writeAsync(byte[] data, int offset, int length) {
+        return mWriteRing.offer(data, offset, length);
+    }
+
+    /**
+     * Same as {@link #writeAsync(byte[], int, int)}, but waits up to
+     * {@code timeoutMillis} if too many writes are pending.
+     */
+    public FrameRing.Result writeAsync(byte[] data, int offset, int length,
+            long timeoutMillis) {
+        return mWriteRing.offer(data, offset, length, timeoutMillis);
     }
 
-    public synchronized void stop() {
-        if (getState() == State.RUNNING) {
-            Log.i(TAG, "Stop requested");
-            mState = State.STOPPING;
+    /**
+     * Returns the ring of pending writes, e.g. to read its metrics. A new ring is
+     * used after each restart.
+     */
+    public FrameRing getWriteRing() {
+        return mWriteRing;
+    }
+
+    public void stop() {
+        final FrameRing writeRing;
+        synchronized (this) {
+            if (getState() == State.RUNNING) {
+                Log.i(TAG, "Stop requested");
+                mState = State.STOPPING;
+                if (mRequestLoop != null) {
+                    mRequestLoop.stop();
+                }
+            }
+            writeRing = mWriteRing;
         }
+        writeRing.close();
     }
 
     public synchronized State getState() {
@@ -119,8 +227,15 @@ public class SerialInputOutputManager implements Runnable {
      * Continuously services the read and write buffers until {@link #stop()} is
      * called, or until a driver exception is raised.
      *
-     * NOTE(mikey): Uses inefficient read/write-with-timeout.
-     * TODO(mikey): Read asynchronously with {@link UsbRequest#queue(ByteBuffer, int)}
+     * Reads are done on the calling thread and writes on a separate writer thread
+     * that wakes up on {@link #writeAsync(byte[])}, so a write never waits for a
+     * read to complete. If the port exposes its read endpoint, it is read with
+     * several {@link UsbRequest}s queued at once and data is delivered as soon as a
+     * request completes. Otherwise falls back to read-with-timeout.
+     *
+     * A stopped manager may be run again. Writes that were pending when it stopped
+     * are dropped, and so are writes made while it is stopped; the next run starts
+     * with an empty write ring.
      */
     @Override
     public void run() {
@@ -129,61 +244,182 @@ public class SerialInputOutputManager implements Runnable {
                 throw new IllegalStateException("Already running.");
             }
             mState = State.RUNNING;
+            if (mWriteRing.isClosed()) {
+                mWriteRing = new FrameRing(mWriteRing.getCapacity(),
+                        mWriteRing.getMaxFrameSize());
+            }
         }
 
         Log.i(TAG, "Running ..");
+        mWriteError = null;
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeLoop();
+                } catch (Exception e) {
+                    mWriteError = e;
+                    stop();
+                }
+            }
+        }, TAG + "Writer");
+        writer.start();
+
+        Exception error = null;
         try {
-            while (true) {
-                if (getState() != State.RUNNING) {
-                    Log.i(TAG, "Stopping mState=" + getState());
-                    break;
+            final UsbEndpoint readEndpoint = getAsyncReadEndpoint();
+            if (readEndpoint != null) {
+                runRequestLoop(readEndpoint);
+            } else {
+                while (true) {
+                    if (getState() != State.RUNNING) {
+                        Log.i(TAG, "Stopping mState=" + getState());
+                        break;
+                    }
+                    step();
                 }
-                step();
             }
         } catch (Exception e) {
-            Log.w(TAG, "Run ending due to exception: " + e.getMessage(), e);
+            error = e;
+        } finally {
+            stop();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (error == null) {
+            error = mWriteError;
+        }
+        if (error != null) {
+            Log.w(TAG, "Run ending due to exception: " + error.getMessage(), error);
             final Listener listener = getListener();
             if (listener != null) {
-              listener.onRunError(e);
+              listener.onRunError(error);
             }
+        }
+        synchronized (this) {
+            mState = State.STOPPED;
+            Log.i(TAG, "Stopped.");
+        }
+    }
+
+    /**
+     * Returns the endpoint to read with UsbRequests, or {@code null} if the port
+     * doesn't support it.
+     */
+    private UsbEndpoint getAsyncReadEndpoint() {
+        // Received length isn't reported by UsbRequest on older platforms,
+        // see http://b.android.com/28023
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return null;
+        }
+        return mDriver.getConnection() != null ? mDriver.getReadEndpoint() : null;
+    }
+
+    private void runRequestLoop(UsbEndpoint readEndpoint) throws IOException {
+        final UsbDeviceConnection connection = mDriver.getConnection();
+        final UsbRequestLoop loop = new UsbRequestLoop(connection);
+        final int transferSize = mDriver.getReadTransferSize();
+        loop.addEndpoint(readEndpoint, READ_REQUEST_COUNT, Math.max(
+                transferSize > 0 ? transferSize : READ_REQUEST_SIZE,
+                readEndpoint.getMaxPacketSize()),
+                new UsbRequestLoop.Callback() {
+                    @Override
+                    public void onRequestComplete(UsbEndpoint endpoint, byte[] data,
+                            int length, long timestampNanos) {
+                        final int len = mDriver.filterReadData(data, length);
+                        if (len > 0) {
+                            onDataRead(data, len, timestampNanos);
+                        }
+                    }
+                });
+        // Status notifications are serviced by the same loop, the port needs no thread of
+        // its own and changes are delivered as soon as the device reports them.
+        final UsbEndpoint statusEndpoint = mDriver.getStatusEndpoint();
+        if (statusEndpoint != null) {
+            loop.addEndpoint(statusEndpoint, STATUS_REQUEST_COUNT,
+                    Math.max(STATUS_REQUEST_SIZE, statusEndpoint.getMaxPacketSize()),
+                    new UsbRequestLoop.Callback() {
+                        @Override
+                        public void onRequestComplete(UsbEndpoint endpoint, byte[] data,
+                                int length, long timestampNanos) {
+                            mDriver.onStatusData(data, length);
+                        }
+                    });
+        }
+        synchronized (this) {
+            if (getState() != State.RUNNING) {
+                return;
+            }
+            mRequestLoop = loop;
+        }
+
+        if (statusEndpoint != null) {
+            mDriver.setStatusEndpointServiced(true);
+        }
+        try {
+            Log.i(TAG, "Reading with " + READ_REQUEST_COUNT + " queued requests"
+                    + (statusEndpoint != null ? ", status with " + STATUS_REQUEST_COUNT : ""));
+            loop.loop();
         } finally {
+            if (statusEndpoint != null) {
+                mDriver.setStatusEndpointServiced(false);
+            }
             synchronized (this) {
-                mState = State.STOPPED;
-                Log.i(TAG, "Stopped.");
+                mRequestLoop = null;
             }
         }
     }
 
-    private void step() throws IOException {
-        // Handle incoming data.
-        int len = mDriver.read(mReadBuffer.array(), READ_WAIT_MILLIS);
-        if (len > 0) {
-            if (DEBUG) Log.d(TAG, "Read data len=" + len);
-            final Listener listener = getListener();
-            if (listener != null) {
-                final byte[] data = new byte[len];
-                mReadBuffer.get(data, 0, len);
-                listener.onNewData(data);
+    /**
+     * Writes data as soon as it's enqueued, until the manager is stopped.
+     */
+    private void writeLoop() throws Exception {
+        final FrameRing.FrameConsumer writer = new FrameRing.FrameConsumer() {
+            @Override
+            public void onFrame(byte[] frame, int length, long enqueuedNanos)
+                    throws IOException {
+                if (DEBUG) {
+                    Log.d(TAG, "Writing data len=" + length);
+                }
+                mDriver.write(frame, length, WRITE_WAIT_MILLIS);
+                final long writtenNanos = SystemClock.elapsedRealtimeNanos();
+
+                final Listener listener = getListener();
+                if (listener instanceof TimestampedListener) {
+                    ((TimestampedListener) listener).onDataWritten(length, enqueuedNanos,
+                            writtenNanos);
+                }
             }
-            mReadBuffer.clear();
-        }
+        };
+        final FrameRing writeRing = mWriteRing;
+        while (getState() == State.RUNNING && writeRing.take(writer)) { }
+    }
 
-        // Handle outgoing data.
-        byte[] outBuff = null;
-        synchronized (mWriteBuffer) {
-            len = mWriteBuffer.position();
-            if (len > 0) {
-                outBuff = new byte[len];
-                mWriteBuffer.rewind();
-                mWriteBuffer.get(outBuff, 0, len);
-                mWriteBuffer.clear();
+    private void onDataRead(byte[] buffer, int len, long timestampNanos) {
+        if (DEBUG) Log.d(TAG, "Read data len=" + len);
+        final Listener listener = getListener();
+        if (listener instanceof BufferListener) {
+            ((BufferListener) listener).onNewData(buffer, 0, len, timestampNanos);
+        } else if (listener != null) {
+            final byte[] data = new byte[len];
+            System.arraycopy(buffer, 0, data, 0, len);
+            if (listener instanceof TimestampedListener) {
+                ((TimestampedListener) listener).onNewData(data, timestampNanos);
+            } else {
+                listener.onNewData(data);
             }
         }
-        if (outBuff != null) {
-            if (DEBUG) {
-                Log.d(TAG, "Writing data len=" + len);
-            }
-            mDriver.write(outBuff, READ_WAIT_MILLIS);
+    }
+
+    private void step() throws IOException {
+        int len = mDriver.read(mReadBuffer.array(), READ_WAIT_MILLIS);
+        if (len > 0) {
+            onDataRead(mReadBuffer.array(), len, SystemClock.elapsedRealtimeNanos());
+            mReadBuffer.clear();
         }
     }
 
@@ -0,0 +1,203 @@
+/* Copyright 2011-2013 Google Inc.
+ * Copyright 2013 mike wakerly <opensource@hoho.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: https://github.com/mik3y/usb-serial-for-android
+ */
+
+package com.hoho.android.usbserial.util;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps several {@link UsbRequest}s queued on IN endpoints of a connection and services their
+ * completions in {@link #run()}.
+ *
+ * <p>
+ * The thread sleeps in {@link UsbDeviceConnection#requestWait()} until the device completes a
+ * transfer, so data is delivered as soon as it arrives and nothing runs while the device is
+ * quiet. While one completion is being handled the other requests stay queued, so the device
+ * never waits for us.
+ * </p>
+ *
+ * <p>
+ * {@link UsbDeviceConnection#requestWait()} returns requests of all endpoints of the connection,
+ * so there must be a single loop per connection.
+ * </p>
+ */
+public class UsbRequestLoop implements Runnable {
+
+    private static final String TAG = UsbRequestLoop.class.getSimpleName();
+
+    public interface Callback {
+        /**
+         * Called on the loop thread when a request of the endpoint is completed. The data is
+         * valid only during the call, the buffer is queued again once this method returns.
+         *
+         * @param timestampNanos {@link SystemClock#elapsedRealtimeNanos()} when the request
+         *            completed
+         */
+        public void onRequestComplete(UsbEndpoint endpoint, byte[] data, int length,
+                long timestampNanos) throws IOException;
+    }
+
+    private static class Transfer {
+        final UsbEndpoint endpoint;
+        final ByteBuffer buffer;
+        final Callback callback;
+        final UsbRequest request = new UsbRequest();
+
+        Transfer(UsbEndpoint endpoint, int bufferSize, Callback callback) {
+            this.endpoint = endpoint;
+            this.buffer = ByteBuffer.allocate(bufferSize);
+            this.callback = callback;
+        }
+    }
+
+    private final UsbDeviceConnection mConnection;
+
+    // Synchronized by 'this'
+    private final List<Transfer> mTransfers = new ArrayList<Transfer>();
+    private boolean mRunning;
+    private boolean mStopped;
+
+    public UsbRequestLoop(UsbDeviceConnection connection) {
+        mConnection = connection;
+    }
+
+    /**
+     * Adds an IN endpoint to service, must be called before {@link #run()}.
+     *
+     * @param requestCount number of requests kept queued on the endpoint
+     * @param bufferSize size of each request, at least the endpoint max packet size
+     */
+    public synchronized void addEndpoint(UsbEndpoint endpoint, int requestCount, int bufferSize,
+            Callback callback) {
+        if (mRunning) {
+            throw new IllegalStateException("Already running.");
+        }
+        for (int i = 0; i < requestCount; i++) {
+            mTransfers.add(new Transfer(endpoint, bufferSize, callback));
+        }
+    }
+
+    /**
+     * Cancels all requests and makes {@link #run()} return. May be called from any thread.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            if (!mRunning) {
+                return;
+            }
+        }
+        Log.i(TAG, "Stop requested");
+        for (Transfer transfer : mTransfers) {
+            transfer.request.cancel();
+        }
+    }
+
+    /**
+     * Services completed requests until {@link #stop()} is called or a transfer fails.
+     *
+     * @throws IOException if a request can't be queued or waiting for requests fails
+     */
+    public void loop() throws IOException {
+        synchronized (this) {
+            if (mRunning) {
+                throw new IllegalStateException("Already running.");
+            }
+            if (mStopped) {
+                return;
+            }
+            mRunning = true;
+        }
+
+        try {
+            for (Transfer transfer : mTransfers) {
+                if (!transfer.request.initialize(mConnection, transfer.endpoint)) {
+                    throw new IOException("Error initializing request.");
+                }
+                transfer.request.setClientData(transfer);
+                queue(transfer);
+            }
+
+            while (!isStopped()) {
+                final UsbRequest request = mConnection.requestWait();
+                if (request == null) {
+                    if (isStopped()) {
+                        break;
+                    }
+                    throw new IOException("Error waiting for request, device detached?");
+                }
+                final long timestampNanos = SystemClock.elapsedRealtimeNanos();
+                if (isStopped()) {
+                    break;
+                }
+
+                final Transfer transfer = (Transfer) request.getClientData();
+                // Position is the number of received bytes.
+                final int length = transfer.buffer.position();
+                if (length > 0) {
+                    transfer.callback.onRequestComplete(transfer.endpoint,
+                            transfer.buffer.array(), length, timestampNanos);
+                }
+                queue(transfer);
+            }
+        } finally {
+            synchronized (this) {
+                mStopped = true;
+            }
+            for (Transfer transfer : mTransfers) {
+                transfer.request.cancel();
+                transfer.request.close();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            loop();
+        } catch (IOException e) {
+            Log.w(TAG, "Loop ending due to exception: " + e.getMessage(), e);
+        }
+    }
+
+    private synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    private void queue(Transfer transfer) throws IOException {
+        transfer.buffer.clear();
+        if (!transfer.request.queue(transfer.buffer, transfer.buffer.capacity())) {
+            throw new IOException("Error queueing request.");
+        }
+    }
+}
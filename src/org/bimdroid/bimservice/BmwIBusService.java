@@ -20,19 +20,28 @@ import android.view.KeyEvent;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 import com.hoho.android.usbserial.driver.UsbSerialProber;
+import com.hoho.android.usbserial.util.FrameRing;
 import com.hoho.android.usbserial.util.HexDump;
 import com.hoho.android.usbserial.util.SerialInputOutputManager;
 
-import java.io.DataOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Service that responsible for interactions between Android apps and vehicle using IBus as a
@@ -62,27 +71,105 @@ public class BmwIBusService extends Service {
     private final static int IBUS_DATA_BITS = UsbSerialPort.DATABITS_8;
     private final static int IBUS_PARITY = UsbSerialPort.PARITY_EVEN;
     private final static int IBUS_STOP_BITS = UsbSerialPort.STOPBITS_1;
+    // USB adapter hands received bytes over after this time.
+    private final static int PORT_LATENCY_TIMER_MS = 1;
+    // Assumed for adapters whose latency timer can't be set, it's the default of FTDI chips.
+    private final static int DEFAULT_PORT_LATENCY_MS = 16;
+    // At 9600 baud a transfer carries a byte or two per latency period, one USB packet is plenty.
+    private final static int PORT_READ_TRANSFER_SIZE = 64;
+    // Start bit, 8 data bits, parity and stop bit.
+    private final static long IBUS_CHAR_TIME_NANOS = 11 * 1000000000L / IBUS_BAUD;
+    // Bus idle time that separates frames, not counting the time the USB adapter may hold
+    // received data, see frameGapChars().
+    private final static int IBUS_FRAME_GAP_CHARS = 6;
+
+    // Packets waiting to be handled, dropping the oldest ones if handlers can't keep up.
+    private final static int DISPATCH_QUEUE_CAPACITY = 64;
 
     private UsbManager mUsbManager;
     private AudioManager mAudioManager;
     private PowerManager mPowerManager;
     private InputManager mInputManager;
     private PowerManager.WakeLock mWakeLock;
+    private volatile KeyInjector mKeyInjector;
     private volatile UsbSerialPort mOpenedPort;
 
     private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
-
-    private final IBusPacketListener mIBusPacketListener = new IBusPacketListener() {
+    private final ShellSession mShellSession = new ShellSession();
+
+    // Accessed only from the USB read thread.
+    private final IBusPacketView mFrameView = new IBusPacketView();
+    private final PacketBatch mPacketBatch = new PacketBatch();
+    // Frames no route is interested in, written only from the USB read thread.
+    private long mFramesIgnored;
+
+    private final PacketRouter mRouter = new PacketRouter();
+    private final LatencyTracker mLatencyTracker = new LatencyTracker();
+    // Timestamps of the packet being dispatched, accessed only from the dispatcher thread.
+    private long mDispatchedNanos;
+    private long mDispatchedPacketReadNanos;
+    // Accessed only from the dispatcher thread.
+    private final ButtonGestureDetector mGestureDetector = new ButtonGestureDetector(
+            new ButtonGestureDetector.Callback() {
+        @Override
+        public void onGesture(int button, ButtonGestureDetector.Gesture gesture,
+                int repeatCount) {
+            onButtonGesture(button, gesture, repeatCount);
+        }
+    });
+    private final PacketDispatcher mDispatcher = new PacketDispatcher(DISPATCH_QUEUE_CAPACITY,
+            PacketDispatcher.OverflowPolicy.DROP_OLDEST, new PacketDispatcher.PacketHandler() {
         @Override
         public void onIBusPacket(IBusPacket packet) {
             onIBusPacketInternal(packet);
         }
+    });
+
+    private final IBusDataDecoder.FrameListener mFrameListener =
+            new IBusDataDecoder.FrameListener() {
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+            mTransmitter.onFrameReceived(frame, offset, length);
+            mFrameView.set(frame, offset);
+            mCorrelator.onFrame(mFrameView);
+            if (mRouter.lookup(mFrameView) == null) {
+                // Nobody is interested in this packet, don't copy the rest of bus traffic.
+                mFramesIgnored++;
+                return;
+            }
+
+            IBusPacket packet = mFrameView.retain();
+            packet.decodedNanos = SystemClock.elapsedRealtimeNanos();
+            mPacketBatch.add(packet);
+        }
     };
-    private final IBusDataDecoder mDecoder = new IBusDataDecoder(mIBusPacketListener);
+    private final IBusDataDecoder mDecoder = new IBusDataDecoder(mFrameListener);
+
+    private final IBusTransmitter mTransmitter = new IBusTransmitter(
+            new IBusTransmitter.FrameWriter() {
+        @Override
+        public FrameRing.Result write(byte[] frame, int offset, int length, long timeoutMs) {
+            SerialInputOutputManager ioManager = mSerialIoManager;
+            if (ioManager == null
+                    || ioManager.getState() != SerialInputOutputManager.State.RUNNING) {
+                return null;
+            }
+            return ioManager.writeAsync(frame, offset, length, timeoutMs);
+        }
+    }, IBUS_CHAR_TIME_NANOS, frameGapChars(DEFAULT_PORT_LATENCY_MS));
 
     private volatile SerialInputOutputManager mSerialIoManager;
 
     private final Timer mTimer = new Timer(BmwIBusService.class.getSimpleName() + "Timer");
+    private final ResponseCorrelator mCorrelator = new ResponseCorrelator(mTimer);
+    private final ObcTextRenderer mObcTextRenderer = new ObcTextRenderer(
+            new ObcTextRenderer.FrameSink() {
+        @Override
+        public void sendFrame(byte[] frame) {
+            // Only the latest text matters, it replaces one that is still waiting for the bus.
+            BmwIBusService.this.sendFrame(frame, TransmitQueue.Priority.LOW, true);
+        }
+    }, mTimer);
     private DisplayOffTask mDisplayOffTask;
     private ShutdownTask mShutdownTask;
 
@@ -90,21 +177,42 @@ public class BmwIBusService extends Service {
     // include cruise control).
     private static final byte RAD = 0x68;  // Radio unit.
     private static final byte TEL = (byte) 0xC8; // Telephone unit
-    private static final byte IKE = (byte) 0x80; // Instrument Kombi Messages (ODB)
-    private static final int MAX_ODB_MESSAGE_LENGTH = 30;
+    static final byte IKE = (byte) 0x80; // Instrument Kombi Messages (ODB)
+    static final byte OBC_TEXT_SOURCE = 0x30;  // Unknown, the IKE shows text sent from it.
     private final static int MFL_VOLUME_DOWN = 0x3210;
     private final static int MFL_VOLUME_UP = 0x3211;
     private final static int MFL_NEXT_TRACK_RELEASE = 0x3B21;
+    private final static int MFL_NEXT_TRACK_HOLD = 0x3B11;
     private final static int MFL_NEXT_TRACK_PUSH = 0x3B01;
     private final static int MFL_PREV_TRACK_RELEASE = 0x3B28;
+    private final static int MFL_PREV_TRACK_HOLD = 0x3B18;
     private final static int MFL_PREV_TRACK_PUSH = 0x3B08;
     private final static int MFL_VOICE_ASSIST_PUSH = 0x3B80;
+    private final static int MFL_VOICE_ASSIST_HOLD = 0x3B90;
     private final static int MFL_VOICE_ASSIST_RELEASE = 0x3BA0;
-    private final static int MFL_RT = 0x3B40;
-
-    // IMPORTANT! Keep this array sorted as it is used by binary search.
-    private final static int[] MFL_DEBOUNCE_BUTTONS_SORTED = new int[]{
-            MFL_VOLUME_DOWN, MFL_VOLUME_UP, MFL_RT
+    private final static int MFL_RT_TOGGLE = 0x01;  // Single byte payload sent to telephone.
+
+    // Buttons that don't report release. MFL may send the same frame twice per press, duplicates
+    // within debounce window are dropped.
+    private final static ButtonGestureDetector.Config MFL_CLICK_BUTTON =
+            new ButtonGestureDetector.Config(false, 100, 0, 0, 0);
+    // Next / previous track: click to skip, hold to seek.
+    private final static ButtonGestureDetector.Config MFL_SEEK_BUTTON =
+            new ButtonGestureDetector.Config(true, 100, 500, 300, 0);
+    private final static ButtonGestureDetector.Config MFL_PUSH_BUTTON =
+            new ButtonGestureDetector.Config(true, 100, 0, 0, 0);
+    private final static ButtonGestureDetector.Config MFL_RT_BUTTON =
+            new ButtonGestureDetector.Config(false, 100, 0, 0, 1000);
+
+    // Resler type adapters sense the bus with the transceiver and report activity on CTS, the level
+    // that means busy is set per adapter, see ConfigStorage#readBusBusyPolarity.
+    private final static int BUS_BUSY_MODEM_LINE = UsbSerialPort.MODEM_LINE_CTS;
+    private final static int MAX_LINE_ERRORS_PER_CHUNK = 16;
+    // 'dumpsys activity service BmwIBusService --reset-latency' prints and then clears latencies.
+    private final static String DUMP_ARG_RESET_LATENCY = "--reset-latency";
+    // Indexed by the bit number of UsbSerialPort#LINE_STATUS_* flags.
+    private final static String[] LINE_STATUS_NAMES = new String[] {
+            "overrun", "parity", "framing", "break"
     };
 
     private final static String[] WELCOME_MESSAGES = new String[] {
@@ -115,10 +223,34 @@ public class BmwIBusService extends Service {
             "Keep calm and drive!"
     };
 
-    private int mPreviousButton = 0;
+    // Offsets of bytes with line errors in the chunk being read, accessed on the read thread only.
+    private final int[] mLineErrorOffsets = new int[MAX_LINE_ERRORS_PER_CHUNK];
+    private int mLineErrorOffsetCount;
+    // Counts of line errors by status bit, see UsbSerialPort#LINE_STATUS_OVERRUN etc.
+    private final AtomicLongArray mLineStatusCounts = new AtomicLongArray(LINE_STATUS_NAMES.length);
+
+    private final BusSenseListener mBusSenseListener = new BusSenseListener();
+
+    private final UsbSerialPort.LineStatusListener mLineStatusListener =
+            new UsbSerialPort.LineStatusListener() {
+        @Override
+        public void onLineStatus(UsbSerialPort port, int status, int offset) {
+            if (DEBUG) Log.w(TAG, "Line status: 0x" + Integer.toHexString(status)
+                    + ", offset: " + offset);
+            for (int i = 0; i < LINE_STATUS_NAMES.length; i++) {
+                if ((status & (1 << i)) != 0) {
+                    mLineStatusCounts.incrementAndGet(i);
+                }
+            }
+            if (offset != UsbSerialPort.LINE_STATUS_OFFSET_UNKNOWN
+                    && mLineErrorOffsetCount < mLineErrorOffsets.length) {
+                mLineErrorOffsets[mLineErrorOffsetCount++] = offset;
+            }
+        }
+    };
 
     private final SerialInputOutputManager.Listener mListener =
-            new SerialInputOutputManager.Listener() {
+            new SerialInputOutputManager.BufferListener() {
 
                 @Override
                 public void onRunError(Exception e) {
@@ -129,7 +261,37 @@ public class BmwIBusService extends Service {
 
                 @Override
                 public void onNewData(final byte[] data) {
-                    mDecoder.onDataReceived(data);
+                    onNewData(data, SystemClock.elapsedRealtimeNanos());
+                }
+
+                @Override
+                public void onNewData(byte[] data, long timestampNanos) {
+                    onNewData(data, 0, data.length, timestampNanos);
+                }
+
+                @Override
+                public void onNewData(byte[] buffer, int offset, int length,
+                        long timestampNanos) {
+                    // Decoder copies what it needs, the buffer is reused after we return.
+                    mTransmitter.onBusActivity(timestampNanos);
+                    mPacketBatch.reset(timestampNanos);
+                    // Line errors of this chunk were reported right before it.
+                    mDecoder.onDataReceived(buffer, offset, length, timestampNanos,
+                            mLineErrorOffsets, mLineErrorOffsetCount);
+                    mLineErrorOffsetCount = 0;
+                    try {
+                        if (mPacketBatch.size() > 0) {
+                            mDispatcher.onIBusPackets(mPacketBatch);
+                        }
+                    } finally {
+                        mPacketBatch.reset(0);
+                    }
+                }
+
+                @Override
+                public void onDataWritten(int length, long enqueuedNanos, long writtenNanos) {
+                    mLatencyTracker.record(LatencyTracker.Stage.WRITE, enqueuedNanos,
+                            writtenNanos);
                 }
             };
 
@@ -164,10 +326,16 @@ public class BmwIBusService extends Service {
 
         if (DEBUG) Log.d(TAG, "onCreate");
 
+        mDecoder.setFrameGap(IBUS_CHAR_TIME_NANOS, frameGapChars(DEFAULT_PORT_LATENCY_MS));
+        registerButtons();
+        mDispatcher.start();
+        mTransmitter.start();
+
         mUsbManager = (UsbManager) getBaseContext().getSystemService(Context.USB_SERVICE);
         mAudioManager = (AudioManager) getBaseContext().getSystemService(Context.AUDIO_SERVICE);
         mPowerManager = (PowerManager) getBaseContext().getSystemService(Context.POWER_SERVICE);
         mInputManager = (InputManager) getBaseContext().getSystemService(Context.INPUT_SERVICE);
+        mKeyInjector = new KeyInjector.InputManagerInjector(mInputManager);
 
         ConfigStorage.SerialPortIdentifier portIdentifier =
                 ConfigStorage.readDefaultPort(getBaseContext());
@@ -188,12 +356,53 @@ public class BmwIBusService extends Service {
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
         stopIoManager();
+        mDispatcher.quit();
+        mTransmitter.quit();
+        mCorrelator.cancelAll();
+        mObcTextRenderer.stop();
+        mShellSession.close();
         mUsbManager = null;
         mAudioManager = null;
 
         super.onDestroy();
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("BmwIBusService, opened port: " + mOpenedPort);
+        writer.println("IBusDataDecoder:");
+        writer.println("  frames decoded: " + mDecoder.getFramesDecoded()
+                + ", bytes discarded: " + mDecoder.getBytesDiscarded()
+                + ", sync lost: " + mDecoder.getSyncLostCount()
+                + ", idle gaps: " + mDecoder.getIdleGapCount()
+                + ", line errors: " + mDecoder.getLineErrorCount()
+                + ", not routed: " + mFramesIgnored);
+        StringBuilder lineStatus = new StringBuilder();
+        for (int i = 0; i < LINE_STATUS_NAMES.length; i++) {
+            lineStatus.append(i == 0 ? "" : ", ")
+                    .append(LINE_STATUS_NAMES[i]).append(": ").append(mLineStatusCounts.get(i));
+        }
+        writer.println("  line status: " + lineStatus);
+        SerialInputOutputManager ioManager = mSerialIoManager;
+        if (ioManager != null) {
+            writer.println("Write ring: " + ioManager.getWriteRing());
+        }
+        mDispatcher.dump(writer);
+        mTransmitter.dump(writer);
+        writer.println("Bus sense: " + mBusSenseListener);
+        mCorrelator.dump(writer);
+        mObcTextRenderer.dump(writer);
+        mRouter.dump(writer);
+        mGestureDetector.dump(writer);
+        mLatencyTracker.dump(writer);
+        if (Arrays.asList(args).contains(DUMP_ARG_RESET_LATENCY)) {
+            mLatencyTracker.reset();
+            writer.println("Latency histograms reset.");
+        }
+        writer.println("Key injector: " + mKeyInjector.getName());
+        writer.println("ShellSession, shells spawned: " + mShellSession.getSpawnCount());
+    }
+
     public void onUsbSerialPortChanged(UsbSerialPort port) {
         stopIoManager();
         if (openConnection(port)) {
@@ -202,6 +411,17 @@ public class BmwIBusService extends Service {
         }
     }
 
+    /**
+     * Applies the bus busy polarity stored for the opened port.
+     */
+    void onBusBusyPolarityChanged() {
+        UsbSerialPort port = mOpenedPort;
+        if (port != null) {
+            mBusSenseListener.reset(
+                    ConfigStorage.readBusBusyPolarity(getBaseContext(), identify(port)));
+        }
+    }
+
     public synchronized void doShutdownDelayed(long waitForDisplayPowerOffMs,
                                                long waitForShutdownMs) {
         mDisplayOffTask = new DisplayOffTask();
@@ -245,27 +465,26 @@ public class BmwIBusService extends Service {
         dispatchKeyEvent(KeyEvent.KEYCODE_POWER, false);
     }
 
-    void dispatchKeyEvent(int keyCode, boolean longpress) {
-        // Alternative way if you do not like red highlights below ;)
-        String command = String.format("input keyevent %s%d",
-                (longpress ? "--longpress " : ""), keyCode);
-        execShellCommand(command);
-
-        // Shit below doesn't work, I wasn't bothering trying to figure out why :(
-//        long now = SystemClock.uptimeMillis();
-//        long down = now - 10;
-//
-//        KeyEvent event = KeyEvent.obtain(
-//                down, down, KeyEvent.ACTION_DOWN, keyCode,
-//                0, 0, 0, 0, 0, InputDevice.SOURCE_KEYBOARD, null);
-//        mInputManager.injectInputEvent(event, 0 /* INJECT_INPUT_EVENT_MODE_ASYNC */);
-//        event.recycle();
-//
-//        event = KeyEvent.obtain(
-//                down, now, KeyEvent.ACTION_UP, keyCode,
-//                0, 0, 0, 0, 0, InputDevice.SOURCE_KEYBOARD, null);
-//        mInputManager.injectInputEvent(event, 0 /* INJECT_INPUT_EVENT_MODE_ASYNC */);
-//        event.recycle();
+    /**
+     * @return future that is completed once the key events are handled.
+     */
+    SettableFuture<?> dispatchKeyEvent(int keyCode, boolean longpress) {
+        KeyInjector injector = mKeyInjector;
+        try {
+            return injector.injectKey(keyCode, longpress);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Key injection with " + injector.getName() + " is denied, falling back to "
+                    + "shell: " + e.getMessage());
+            mKeyInjector = new KeyInjector.ShellInjector(mShellSession);
+            return mKeyInjector.injectKey(keyCode, longpress);
+        }
+    }
+
+    /**
+     * Returns the name of the backend currently used for key injection.
+     */
+    public String getKeyInjectorName() {
+        return mKeyInjector.getName();
     }
 
     void immediateShutdown() {
@@ -283,23 +502,9 @@ public class BmwIBusService extends Service {
         mCancelShutdownListener = null;
     }
 
-    private static void execShellCommand(String command) {
-        try {
-            Log.d(TAG, "execShellCommand, command: " + command);
-
-            Process su = Runtime.getRuntime().exec("su");
-            DataOutputStream outputStream = new DataOutputStream(su.getOutputStream());
-
-            outputStream.writeBytes(command + "\n");
-            outputStream.flush();
-
-            outputStream.writeBytes("exit\n");
-            outputStream.flush();
-
-            su.waitFor();
-        }catch(IOException | InterruptedException e){
-            Log.e(TAG, "execShellCommand, command: " + command + ", error: " + e.getMessage(), e);
-        }
+    private void execShellCommand(String command) {
+        Log.d(TAG, "execShellCommand, command: " + command);
+        mShellSession.exec(command);
     }
 
     private UsbSerialPort findUsbSerialPort(ConfigStorage.SerialPortIdentifier identifier) {
@@ -312,7 +517,8 @@ public class BmwIBusService extends Service {
                 if (device != null
                         && device.getVendorId() == identifier.getVendorId()
                         && device.getProductId() == identifier.getProductId()
-                        && Objects.equals(device.getSerialNumber(), identifier.getSerialNumber())) {
+                        && Objects.equals(device.getSerialNumber(), identifier.getSerialNumber())
+                        && port.getPortNumber() == identifier.getPortNumber()) {
                     return port;
                 }
             }
@@ -321,6 +527,12 @@ public class BmwIBusService extends Service {
         return null;
     }
 
+    private static ConfigStorage.SerialPortIdentifier identify(UsbSerialPort port) {
+        UsbDevice device = port.getDriver().getDevice();
+        return new ConfigStorage.SerialPortIdentifier(device.getVendorId(), device.getProductId(),
+                device.getSerialNumber(), port.getPortNumber());
+    }
+
     private boolean openConnection(UsbSerialPort port) {
         UsbDeviceConnection connection = mUsbManager.openDevice(port.getDriver().getDevice());
 
@@ -331,7 +543,17 @@ public class BmwIBusService extends Service {
 
         try {
             port.open(connection);
+            port.setLineStatusListener(mLineStatusListener);
+            if ((port.getCapabilities() & UsbSerialPort.CAPABILITY_MODEM_LINE_EVENTS) != 0) {
+                mBusSenseListener.reset(
+                        ConfigStorage.readBusBusyPolarity(getBaseContext(), identify(port)));
+                port.setModemLineListener(mBusSenseListener);
+            }
             port.setParameters(IBUS_BAUD, IBUS_DATA_BITS, IBUS_STOP_BITS, IBUS_PARITY);
+            final int gapChars = frameGapChars(tunePortLatency(port));
+            mDecoder.setFrameGap(IBUS_CHAR_TIME_NANOS, gapChars);
+            mTransmitter.setIdleChars(gapChars);
+            if (DEBUG) Log.d(TAG, "Frame gap: " + gapChars + " characters");
 
             if (DEBUG) {
                 Log.d(TAG, "CD  - Carrier Detect: " + port.getCD());
@@ -353,6 +575,40 @@ public class BmwIBusService extends Service {
         }
     }
 
+    /**
+     * A frame is about 40 characters long, so bytes are handed over right away instead of waiting
+     * for the default 16ms latency timer of FTDI chips.
+     *
+     * @return the time in milliseconds the adapter may hold received data.
+     */
+    private int tunePortLatency(UsbSerialPort port) throws IOException {
+        final int capabilities = port.getCapabilities();
+        if ((capabilities & UsbSerialPort.CAPABILITY_TRANSFER_SIZE) != 0) {
+            port.setReadTransferSize(PORT_READ_TRANSFER_SIZE);
+        }
+        if ((capabilities & UsbSerialPort.CAPABILITY_LATENCY_TIMER) != 0
+                && port.setLatencyTimer(PORT_LATENCY_TIMER_MS)) {
+            final int latencyMs = port.getLatencyTimer();
+            if (DEBUG) Log.d(TAG, "Latency timer: " + latencyMs + "ms");
+            if (latencyMs > 0) {
+                return latencyMs;
+            }
+        } else {
+            if (DEBUG) Log.d(TAG, "Latency timer isn't supported by " + port);
+        }
+        return DEFAULT_PORT_LATENCY_MS;
+    }
+
+    /**
+     * Returns the bus idle time, in characters, that separates frames. Bytes reach us up to one
+     * latency period of the adapter late, so gaps between reads are blurred by that much.
+     */
+    private static int frameGapChars(int portLatencyMs) {
+        final long latencyNanos = TimeUnit.MILLISECONDS.toNanos(portLatencyMs);
+        return IBUS_FRAME_GAP_CHARS
+                + (int) ((latencyNanos + IBUS_CHAR_TIME_NANOS - 1) / IBUS_CHAR_TIME_NANOS);
+    }
+
     private void restartIoManager(UsbSerialPort port) {
         stopIoManager();
         startIoManager(port);
@@ -379,6 +635,7 @@ public class BmwIBusService extends Service {
         if (port != null) {
             if (DEBUG) Log.i(TAG, "Starting io manager...");
             mDecoder.reset();
+            mLineErrorOffsetCount = 0;
             mSerialIoManager = new SerialInputOutputManager(port, mListener);
             mExecutor.submit(mSerialIoManager);
 
@@ -395,292 +652,296 @@ public class BmwIBusService extends Service {
         }
     }
 
+    /**
+     * Shows the text on the OBC display, text that doesn't fit is scrolled.
+     */
     public void sendTextMessageToObc(String message) {
-        String normalizedMessage = message.length() > MAX_ODB_MESSAGE_LENGTH
-                ? message.substring(0, MAX_ODB_MESSAGE_LENGTH)
-                : message;
-
-        normalizedMessage = normalizedMessage.toUpperCase();
-
-        if (DEBUG) Log.i(TAG, "Sending text message to IBus: " + normalizedMessage);
-
-        IBusRawPacket packet = new IBusRawPacket();
-        packet.source = 0x30;
-        packet.destination = IKE;
-        packet.payload[0] = 0x1A;
-        packet.payload[1] = 0x35;
-        packet.payload[2] = 0x00;
+        if (DEBUG) Log.i(TAG, "Sending text message to IBus: " + message);
+        mObcTextRenderer.show(message, ObcTextRenderer.Mode.MARQUEE);
+    }
 
-        final int payloadPrefixSize = 3;
-        for (int i = 0; i < normalizedMessage.length(); i++) {
-            byte b = (byte) normalizedMessage.charAt(i);
-            packet.payload[i + payloadPrefixSize] = b;
-        }
+    /**
+     * Sends a query and waits for the response asynchronously.
+     *
+     * @param responseMatcher describes the expected response, see
+     *            {@link ResponseCorrelator.ResponseMatcher#replyTo(IBusRawPacket, byte)}.
+     * @return future that is completed with a copy of the response, the caller may recycle it.
+     *         The future fails with {@link java.util.concurrent.TimeoutException} if there was no
+     *         response in time, or with {@link IOException} as soon as it's known that the query
+     *         couldn't be delivered.
+     */
+    public Future<IBusPacket> sendAndAwait(IBusRawPacket packet,
+            ResponseCorrelator.ResponseMatcher responseMatcher, long timeoutMs) {
+        // Registered first, the response may arrive before the transmitter sees the echo.
+        final Future<IBusPacket> response = mCorrelator.await(responseMatcher, timeoutMs);
+        final SettableFuture<IBusTransmitter.DeliveryStatus> delivery =
+                sendIBusMessage(packet, TransmitQueue.Priority.NORMAL, false);
+        delivery.addListener(new Runnable() {
+            @Override
+            public void run() {
+                IBusTransmitter.DeliveryStatus status;
+                try {
+                    status = delivery.get();
+                } catch (InterruptedException | ExecutionException | CancellationException e) {
+                    status = null;
+                }
+                if (status != IBusTransmitter.DeliveryStatus.DELIVERED) {
+                    mCorrelator.fail(response,
+                            new IOException("Query wasn't delivered, status: " + status));
+                }
+            }
+        });
+        return response;
+    }
 
-        packet.packetLength = normalizedMessage.length() + payloadPrefixSize + 2;
-        sendIBusMessage(packet);
+    /**
+     * Sends a IBus message once the bus is idle, retrying on collisions.
+     *
+     * @return future that is completed with the delivery status of the message.
+     */
+    public Future<IBusTransmitter.DeliveryStatus> sendIBusMessage(IBusRawPacket packet) {
+        return sendIBusMessage(packet, TransmitQueue.Priority.NORMAL, false);
     }
 
     /**
-     * Sends a IBus message
+     * Sends a IBus message once the bus is idle and there are no more urgent messages, retrying
+     * on collisions.
      *
-     * @return {@code true} if message sent successfully otherwise returns {@code false}.
+     * @param supersede replace a queued message with the same destination and command.
+     * @return future that is completed with the delivery status of the message.
+     */
+    SettableFuture<IBusTransmitter.DeliveryStatus> sendIBusMessage(IBusRawPacket packet,
+            TransmitQueue.Priority priority, boolean supersede) {
+        return sendFrame(packet.toByteArray(), priority, supersede);
+    }
+
+    /**
+     * @param frame encoded frame, owned by the transmitter afterwards.
      */
-    public boolean sendIBusMessage(IBusRawPacket packet) {
+    private SettableFuture<IBusTransmitter.DeliveryStatus> sendFrame(byte[] frame,
+            TransmitQueue.Priority priority, boolean supersede) {
         if (mSerialIoManager == null
                 || mSerialIoManager.getState() != SerialInputOutputManager.State.RUNNING) {
             if (DEBUG) Log.w(TAG, "Attempt to send ODB message when serial IO manager is not running");
-            return false;
+            SettableFuture<IBusTransmitter.DeliveryStatus> status = new SettableFuture<>();
+            status.set(IBusTransmitter.DeliveryStatus.DROPPED);
+            return status;
         }
 
-        if (DEBUG) Log.i(TAG, "Sending message to IBus: " + HexDump.toHexString(packet.toByteArray()));
-        mSerialIoManager.writeAsync(packet.toByteArray());
-        return true;
-    }
-
-    private boolean debounce(int button) {
-        boolean needToDebounce = Arrays.binarySearch(MFL_DEBOUNCE_BUTTONS_SORTED, button) != -1;
-        if (needToDebounce && button == mPreviousButton) {
-            mPreviousButton = 0;
-            return false;
-        }
-        mPreviousButton = needToDebounce ? button : 0;
-        return true;
+        if (DEBUG) Log.i(TAG, "Sending message to IBus: " + HexDump.toHexString(frame));
+        return mTransmitter.send(frame, priority, supersede);
     }
 
     void onIBusPacketInternal(IBusPacket packet) {
         if (DEBUG) Log.d(TAG, "onIBusPacketInternal, packet: " + packet);
+        mDispatchedNanos = SystemClock.elapsedRealtimeNanos();
+        mDispatchedPacketReadNanos = packet.timestampNanos;
+        mLatencyTracker.record(LatencyTracker.Stage.DECODE, packet.timestampNanos,
+                packet.decodedNanos);
+        mLatencyTracker.record(LatencyTracker.Stage.QUEUE, packet.decodedNanos, mDispatchedNanos);
+        mRouter.onIBusPacket(packet);
+    }
 
-        boolean steeringWheelButton = packet.source == MFL
-                && packet.payload.length == 2
-                && (packet.destination == RAD || packet.destination == TEL);
-
-        if (steeringWheelButton) {
-            int button = (packet.payload[0] & 0xff) << 8 | (packet.payload[1] & 0xff);
+    /**
+     * Called when the action triggered by the packet being dispatched is done.
+     */
+    private void onActionCompleted() {
+        onActionCompleted(mDispatchedNanos, mDispatchedPacketReadNanos);
+    }
 
-            if (!debounce(button)) {
-                Log.d(TAG, "Button event was ignored due to bouncing. Button: 0x"
-                        + Integer.toHexString(button));
-                return;
+    /**
+     * Called when the action triggered by the packet being dispatched is started, it's done once
+     * the future completes, possibly after the next packets were dispatched.
+     */
+    private void onActionStarted(final SettableFuture<?> action) {
+        final long dispatchedNanos = mDispatchedNanos;
+        final long readNanos = mDispatchedPacketReadNanos;
+        action.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    action.get();
+                } catch (InterruptedException | ExecutionException | CancellationException e) {
+                    return;  // Failed actions would skew the histograms.
+                }
+                onActionCompleted(dispatchedNanos, readNanos);
             }
-
-            if (button == MFL_VOLUME_DOWN) {
-                if (DEBUG) Log.d(TAG, "Volume down IBus message received");
-                mAudioManager.adjustVolume(AudioManager.ADJUST_LOWER, 0);
-            } else if (button == MFL_VOLUME_UP) {
-                if (DEBUG) Log.d(TAG, "Volume up IBus message received");
-                mAudioManager.adjustVolume(AudioManager.ADJUST_RAISE, 0);
-            } else if (button == MFL_NEXT_TRACK_PUSH) {
-                if (DEBUG) Log.d(TAG, "Next track IBus message received");
-                dispatchMediaKeyEvent(KeyEvent.KEYCODE_MEDIA_NEXT);
-            } else if (button == MFL_PREV_TRACK_PUSH) {
-                if (DEBUG) Log.d(TAG, "Previous track IBus message received");
-                dispatchMediaKeyEvent(KeyEvent.KEYCODE_MEDIA_PREVIOUS);
-            } else if (button == MFL_VOICE_ASSIST_PUSH) {
-                Intent intent = new Intent("android.intent.action.VOICE_ASSIST"); /* Intent.ACTION_VOICE_ASSIST */
-                intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                startActivity(intent);
-            } else {
-                Log.w(TAG, "Unknown button: " + Integer.toHexString(button));
-            }
-        } else if (packet.source == MFL && packet.destination == TEL
-                && packet.length == 1 && packet.payload[0] == 1) {
-            if (DEBUG) Log.d(TAG, "R/T IBus message received");  // T/T
-            dispatchKeyEvent(KeyEvent.KEYCODE_HOME,
-                    SystemClock.uptimeMillis() - lastRtPressed > 1000);
-            lastRtPressed = SystemClock.uptimeMillis();
-        }
-    }
-
-    private long lastRtPressed = 0;
-
-    private void dispatchMediaKeyEvent(int keyCode) {
-        KeyEvent eventDown = new KeyEvent(KeyEvent.ACTION_DOWN, keyCode);
-        mAudioManager.dispatchMediaKeyEvent(eventDown);
-        SystemClock.sleep(2);
-        KeyEvent eventUp = new KeyEvent(KeyEvent.ACTION_UP, keyCode);
-        mAudioManager.dispatchMediaKeyEvent(eventUp);
+        });
     }
 
-    static class RingByteBuffer {
-        private final byte[] mBuffer;
-        private final int mSize;
+    private void onActionCompleted(long dispatchedNanos, long readNanos) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        mLatencyTracker.record(LatencyTracker.Stage.HANDLE, dispatchedNanos, now);
+        mLatencyTracker.record(LatencyTracker.Stage.TOTAL, readNanos, now);
+    }
 
-        private int mCurrentIndex = 0;
+    private void registerButtons() {
+        registerButton(MFL_VOLUME_DOWN, 0, 0, "Volume down", MFL_CLICK_BUTTON);
+        registerButton(MFL_VOLUME_UP, 0, 0, "Volume up", MFL_CLICK_BUTTON);
+        registerButton(MFL_NEXT_TRACK_PUSH, MFL_NEXT_TRACK_HOLD, MFL_NEXT_TRACK_RELEASE,
+                "Next track", MFL_SEEK_BUTTON);
+        registerButton(MFL_PREV_TRACK_PUSH, MFL_PREV_TRACK_HOLD, MFL_PREV_TRACK_RELEASE,
+                "Previous track", MFL_SEEK_BUTTON);
+        registerButton(MFL_VOICE_ASSIST_PUSH, MFL_VOICE_ASSIST_HOLD, MFL_VOICE_ASSIST_RELEASE,
+                "Voice assist", MFL_PUSH_BUTTON);
+
+        // Any other button, the most specific route wins so this one gets only unknown buttons.
+        PacketDispatcher.PacketHandler unknownButton = new PacketDispatcher.PacketHandler() {
+            @Override
+            public void onIBusPacket(IBusPacket packet) {
+                if (packet.length == 2) {
+                    Log.w(TAG, "Unknown button: " + Integer.toHexString(
+                            (packet.payload[0] & 0xff) << 8 | (packet.payload[1] & 0xff)));
+                }
+            }
+        };
+        mRouter.register("Unknown button", MFL, RAD, new byte[0], unknownButton);
+        mRouter.register("Unknown button", MFL, TEL, new byte[0], unknownButton);
+
+        mGestureDetector.addButton(MFL_RT_TOGGLE, MFL_RT_BUTTON);
+        mRouter.register("R/T", MFL, TEL, new byte[] { MFL_RT_TOGGLE },
+                new PacketDispatcher.PacketHandler() {
+            @Override
+            public void onIBusPacket(IBusPacket packet) {
+                if (packet.length == 1) {
+                    mGestureDetector.onButtonEvent(MFL_RT_TOGGLE,
+                            ButtonGestureDetector.Action.PUSH, packet.timestampNanos);
+                }
+            }
+        });
+    }
 
-        RingByteBuffer(int size) {
-            mSize = size;
-            mBuffer = new byte[size];
+    /**
+     * Routes push, hold and release frames of the steering wheel button sent either to the radio
+     * or to the telephone to the gesture detector.
+     *
+     * @param holdCode code of hold frame or 0 if button doesn't have it, same for release.
+     */
+    private void registerButton(int pushCode, int holdCode, int releaseCode, String name,
+            ButtonGestureDetector.Config config) {
+        mGestureDetector.addButton(pushCode, config);
+        registerButtonRoute(pushCode, pushCode, ButtonGestureDetector.Action.PUSH, name);
+        if (holdCode != 0) {
+            registerButtonRoute(pushCode, holdCode, ButtonGestureDetector.Action.HOLD,
+                    name + " hold");
         }
-
-        void addByte(byte b) {
-            mBuffer[mCurrentIndex++] = b;
-
-            if (mCurrentIndex == mSize) {
-                mCurrentIndex = 0;
-                if (DEBUG) Log.d(TAG, "IBUS RAW DATA: " + HexDump.toHexString(mBuffer));
-            }
+        if (releaseCode != 0) {
+            registerButtonRoute(pushCode, releaseCode, ButtonGestureDetector.Action.RELEASE,
+                    name + " release");
         }
+    }
 
-        byte[] getBytes(int elements) {
-            if (elements > mSize) {
-                Log.wtf(TAG, "Asking for more elements than we have in the buffer." +
-                        " Buffer size: " + mSize + ", elements requested: " + elements);
-                return new byte[]{};
-            }
-
-            int virtualPosition = mCurrentIndex - elements;
-            if (virtualPosition >= 0) {
-                return Arrays.copyOfRange(mBuffer, virtualPosition, mCurrentIndex);
-            } else {
-                byte[] head = Arrays.copyOfRange(mBuffer, mSize + virtualPosition, mSize);
-                if (mCurrentIndex == 0) {
-                    return head;
+    private void registerButtonRoute(final int button, int code,
+            final ButtonGestureDetector.Action action, String name) {
+        PacketDispatcher.PacketHandler handler = new PacketDispatcher.PacketHandler() {
+            @Override
+            public void onIBusPacket(IBusPacket packet) {
+                if (packet.length == 2) {
+                    mGestureDetector.onButtonEvent(button, action, packet.timestampNanos);
                 }
-
-                byte[] tail = Arrays.copyOfRange(mBuffer, 0, mCurrentIndex);
-                return concatenate(head, tail);
-            }
-        }
-
-        private static byte[] concatenate(byte[] array1, byte[] array2) {
-            byte[] result = new byte[array1.length + array2.length];
-            System.arraycopy(array1, 0, result, 0, array1.length);
-            System.arraycopy(array2, 0, result, array1.length, array2.length);
-            return result;
-        }
-    }
-
-    static class IBusDataDecoder {
-
-        private static final int PACKET_STATE_COMPLETE = 0xFF;
-        private int mPacketState = 0;
-        private boolean mPreviousPacketComplted = false;
-
-        private final IBusRawPacket mPacket = new IBusRawPacket();
-
-        // Keep track of incoming data in RingBuffer so we could recover if for example check sum
-        // didn't match (perhaps we messed up with start packet).
-        private final RingByteBuffer mRecoveryBuffer = new RingByteBuffer(255);
-
-        private static final byte[] sKnownDestinations = new byte[] {
-                (byte)0x80,  // IKE Instrument Kombi Electronics
-                (byte)0xA4,  // Unknown, observed during key ignition on / off
-                (byte)0xA8,  // Unknown
-                (byte)0xBB,  // TV Module
-                (byte)0xBF,  // LCM Light Control Module
-                (byte)0xC0,  // MID Multi-Information Display Buttons
-                (byte)0xC8,  // TEL Telephone
-                (byte)0xD0,  // Navigation Location
-                (byte)0xE7,  // OBC TextBar
-                (byte)0xE8,  // Unknown
-                (byte)0xED,  // Lights, Wipers, Seat Memory
-                (byte)0xF0,   // BMB Board Monitor Buttons
-                (byte)0xFF,  // Broadcast
-
-                0x00,  // Broadcast
-                0x18,  // CDW - CDC CD-Player
-                0x30,  // Unknown
-                0x3B,  // NAV Navigation/ Video module
-                0x3F,  // Unknown
-                0x43,  // Menu screen
-                0x44,  // Unknown
-                MFL,   // 0x50 MFL Multi Functional Steering Wheel Buttons
-                0x60,  // PDC Park Distance Control
-                RAD,   // 0x68 RAD Radio
-                0x6A,  // DSP Digital Sound Processor
-                0x7F,  // Unknown
+            }
         };
+        byte[] prefix = new byte[] { (byte) (code >> 8), (byte) code };
+        mRouter.register(name, MFL, RAD, prefix, handler);
+        mRouter.register(name, MFL, TEL, prefix, handler);
+    }
 
-        private final IBusPacketListener mListener;
-
-        IBusDataDecoder(IBusPacketListener listener) {
-            mListener = listener;
-        }
-
-        void reset() {
-            mPacketState = 0;
-            mRecoveryBuffer.mCurrentIndex = 0;
+    private void onButtonGesture(int button, ButtonGestureDetector.Gesture gesture,
+            int repeatCount) {
+        if (DEBUG) Log.d(TAG, "onButtonGesture, button: 0x" + Integer.toHexString(button)
+                + ", gesture: " + gesture + ", repeatCount: " + repeatCount);
+
+        boolean handled = false;
+        switch (button) {
+            case MFL_VOLUME_DOWN:
+                if (gesture == ButtonGestureDetector.Gesture.CLICK) {
+                    mAudioManager.adjustVolume(AudioManager.ADJUST_LOWER, 0);
+                    handled = true;
+                }
+                break;
+            case MFL_VOLUME_UP:
+                if (gesture == ButtonGestureDetector.Gesture.CLICK) {
+                    mAudioManager.adjustVolume(AudioManager.ADJUST_RAISE, 0);
+                    handled = true;
+                }
+                break;
+            case MFL_NEXT_TRACK_PUSH:
+                handled = onSeekButtonGesture(gesture, KeyEvent.KEYCODE_MEDIA_NEXT,
+                        KeyEvent.KEYCODE_MEDIA_FAST_FORWARD);
+                break;
+            case MFL_PREV_TRACK_PUSH:
+                handled = onSeekButtonGesture(gesture, KeyEvent.KEYCODE_MEDIA_PREVIOUS,
+                        KeyEvent.KEYCODE_MEDIA_REWIND);
+                break;
+            case MFL_VOICE_ASSIST_PUSH:
+                if (gesture == ButtonGestureDetector.Gesture.PRESS) {
+                    Intent intent = new Intent("android.intent.action.VOICE_ASSIST"); /* Intent.ACTION_VOICE_ASSIST */
+                    intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    startActivity(intent);
+                    handled = true;
+                }
+                break;
+            case MFL_RT_TOGGLE:
+                // Single press brings up assistant (long press of home), double press goes home.
+                if (gesture == ButtonGestureDetector.Gesture.CLICK) {
+                    onActionStarted(dispatchKeyEvent(KeyEvent.KEYCODE_HOME, true));
+                } else if (gesture == ButtonGestureDetector.Gesture.DOUBLE_PRESS) {
+                    onActionStarted(dispatchKeyEvent(KeyEvent.KEYCODE_HOME, false));
+                }
+                break;
         }
 
-        private boolean isKnownDestination(byte b) {
-            return Arrays.binarySearch(sKnownDestinations, b) >= 0;
+        if (handled) {
+            onActionCompleted();
         }
+    }
 
-        private boolean checkState(byte b) {
-            if (mPacketState == 0 && isKnownDestination(b)) {  // We are looking for source
-                mPacket.source = b;
-                return true;
-            } else if (mPacketState == 0 && mPreviousPacketComplted && !isKnownDestination(b)) {
-
-
-                Log.w(TAG, "Possible legal source destination: 0x" + Integer.toHexString(b & 0xff));
-                return false;
-            } else
-            if (mPacketState == 1 && b < 127 && b > 1) {  // Length
-                mPacket.packetLength = b;  // 1 - byte destination, 1 - byte calcChecksum.
+    /**
+     * Click skips the track, holding the button seeks with one key event per repeat interval.
+     *
+     * @return {@code true} if a key event was dispatched.
+     */
+    private boolean onSeekButtonGesture(ButtonGestureDetector.Gesture gesture, int skipKeyCode,
+            int seekKeyCode) {
+        switch (gesture) {
+            case CLICK:
+                dispatchMediaKeyEvent(skipKeyCode);
                 return true;
-            } else if (mPacketState == 2 && isKnownDestination(b)) { // Destination
-                mPacket.destination = b;
+            case LONG_PRESS:
+            case REPEAT:
+                dispatchMediaKeyEvent(seekKeyCode);
                 return true;
-            } else if (mPacketState > 2) {
-                int curIndex = mPacketState - 3;
-                if (curIndex < (mPacket.packetLength - 2)) {
-                    mPacket.payload[curIndex] = b;
-                    return true;
-                } else {
-                    // Calculate checksum.
-                    byte checksum = mPacket.calcChecksum();
-                    boolean valid = checksum == b;
-                    if (valid) {
-                        mPacketState = PACKET_STATE_COMPLETE;
-                    }
-                    if (!valid) {
-                        Log.w(TAG, "Invalid check sum, expected: " + checksum + ", was: " + b
-                                + ", for packet: " + mPacket);
-                    }
-                    return valid;
-                }
-            }
-
-            return false;
-        }
-
-        void onDataReceived(byte[] bytes) {
-            for (byte b : bytes) {
-                onDataReceived(b);
-            }
+            default:
+                return false;
         }
+    }
 
-        void onDataReceived(byte b) {
-            mRecoveryBuffer.addByte(b);
-            if (checkState(b)) {
-                if (mPacketState == PACKET_STATE_COMPLETE) {
-                    mListener.onIBusPacket(new IBusPacket(mPacket));
-                    mPacketState = 0; // Reset.
-                    mPreviousPacketComplted = true;
-                } else {
-                    mPacketState++;
-                    mPreviousPacketComplted = false;
-                }
-            } else {  // We lost track of packet structure.
-                mPreviousPacketComplted = false;
-                boolean checksumFailed = mPacketState > 2;
-                mPacketState = 0;
-                if (checksumFailed) {
-                    onDataReceived(mRecoveryBuffer.getBytes(mPacket.packetLength));
-                }
-            }
-        }
+    private void dispatchMediaKeyEvent(int keyCode) {
+        KeyEvent eventDown = new KeyEvent(KeyEvent.ACTION_DOWN, keyCode);
+        mAudioManager.dispatchMediaKeyEvent(eventDown);
+        SystemClock.sleep(2);
+        KeyEvent eventUp = new KeyEvent(KeyEvent.ACTION_UP, keyCode);
+        mAudioManager.dispatchMediaKeyEvent(eventUp);
     }
 
+    /**
+     * IBus packet to send. Payload array is sized to the payload, use {@link Builder} to compose
+     * a packet and {@link #encode(byte[], int)} to write the frame without temporary arrays.
+     */
     static class IBusRawPacket {
-        byte source;
-        int packetLength;  // Length in raw IBusRawPacket includes destination,
-                           // payload and checksum byte.
-        byte destination;
+        final byte source;
+        final int packetLength;  // Length in raw IBusRawPacket includes destination,
+                                 // payload and checksum byte.
+        final byte destination;
 
-        byte[] payload = new byte[192]; // doesn't include checksum
+        final byte[] payload; // doesn't include checksum
+
+        IBusRawPacket(byte source, byte destination, byte[] payload) {
+            this.source = source;
+            this.destination = destination;
+            this.payload = payload;
+            this.packetLength = payload.length + 2;
+        }
 
         static IBusRawPacket createFromString(String text) {
             String s = text.toUpperCase().replace(" ", "").replace("0x", "");
@@ -698,17 +959,13 @@ public class BmwIBusService extends Service {
                 bytes[i / 2] = (byte) ((charToValue(chars[i]) << 4) | charToValue(chars[i + 1]));
             }
 
-            IBusRawPacket p = new IBusRawPacket();
-            p.source = bytes[0];
-            p.packetLength = bytes[1];
-            p.destination = bytes[2];
-            if (p.packetLength != bytes.length - 1) {
+            int packetLength = bytes[1];
+            if (packetLength != bytes.length - 1) {
                 throw new IllegalArgumentException("Invalid packet length. Provided: "
-                        + p.packetLength + ", expected: " + (bytes.length - 2));
+                        + packetLength + ", expected: " + (bytes.length - 1));
             }
-            System.arraycopy(bytes, 3, p.payload, 0, bytes.length - 3);
-
-            return p;
+            return new IBusRawPacket(bytes[0], bytes[2],
+                    Arrays.copyOfRange(bytes, 3, bytes.length));
         }
 
         private static int charToValue(char c) {
@@ -732,43 +989,255 @@ public class BmwIBusService extends Service {
         }
 
         int getPayloadLength() {
-            return packetLength - 2;  // minus destination and checksum.
+            return payload.length;
+        }
+
+        /** Length of the encoded frame: source, length, destination, payload and checksum. */
+        int getFrameLength() {
+            return packetLength + 2;
         }
 
         byte calcChecksum() {
             int checksum = source ^ packetLength ^ destination;
-            for (int i = 0; i < getPayloadLength(); i++) {
+            for (int i = 0; i < payload.length; i++) {
                 checksum ^= payload[i];
             }
             return (byte) checksum;
         }
 
+        /**
+         * Writes the frame to the buffer.
+         *
+         * @return the frame length.
+         */
+        int encode(byte[] buffer, int offset) {
+            return encodeFrame(source, destination, payload, payload.length, buffer, offset);
+        }
+
+        /**
+         * Writes the frame at the position of the buffer and advances the position.
+         *
+         * @throws java.nio.BufferOverflowException if the frame doesn't fit.
+         */
+        void encode(ByteBuffer buffer) {
+            if (buffer.remaining() < getFrameLength()) {
+                throw new BufferOverflowException();
+            }
+            if (buffer.hasArray()) {
+                int offset = buffer.arrayOffset() + buffer.position();
+                buffer.position(buffer.position() + encode(buffer.array(), offset));
+                return;
+            }
+            int checksum = source ^ packetLength ^ destination;
+            buffer.put(source).put((byte) packetLength).put(destination);
+            for (byte b : payload) {
+                buffer.put(b);
+                checksum ^= b;
+            }
+            buffer.put((byte) checksum);
+        }
+
         byte[] toByteArray() {
-            int arrayLength = packetLength + 2; /* source + length itself */
-            byte[] buffer = new byte[arrayLength];
+            byte[] buffer = new byte[getFrameLength()];
+            encode(buffer, 0);
+            return buffer;
+        }
 
-            buffer[0] = source;
-            buffer[1] = (byte) packetLength;
-            buffer[2] = destination;
-            System.arraycopy(payload, 0, buffer, 3, getPayloadLength());
+        private static int encodeFrame(byte source, byte destination, byte[] payload,
+                int payloadLength, byte[] buffer, int offset) {
+            final int packetLength = payloadLength + 2;  // destination and checksum.
+            int checksum = source ^ packetLength ^ destination;
+            buffer[offset] = source;
+            buffer[offset + 1] = (byte) packetLength;
+            buffer[offset + 2] = destination;
+            int position = offset + 3;
+            for (int i = 0; i < payloadLength; i++) {
+                final byte b = payload[i];
+                buffer[position++] = b;
+                checksum ^= b;
+            }
+            buffer[position++] = (byte) checksum;
+            return position - offset;
+        }
 
-            buffer[arrayLength - 1] = calcChecksum();
+        /**
+         * Composes packets, e.g.
+         * {@code builder.reset(src, dst).append(0x1A, 0x35, 0x00).appendAscii(text).build()}.
+         * The builder may be reused, its storage grows only when a longer payload is appended.
+         * Not thread safe.
+         */
+        static class Builder {
+            private static final int MAX_PAYLOAD_LENGTH =
+                    IBusDataDecoder.MAX_LENGTH - IBusDataDecoder.MIN_LENGTH;
+
+            private byte mSource;
+            private byte mDestination;
+            private byte[] mPayload = new byte[16];
+            private int mLength;
+
+            Builder reset(int source, int destination) {
+                mSource = (byte) source;
+                mDestination = (byte) destination;
+                mLength = 0;
+                return this;
+            }
 
-            return buffer;
+            Builder append(int b) {
+                ensureCapacity(1);
+                mPayload[mLength++] = (byte) b;
+                return this;
+            }
+
+            Builder append(int... bytes) {
+                ensureCapacity(bytes.length);
+                for (int b : bytes) {
+                    mPayload[mLength++] = (byte) b;
+                }
+                return this;
+            }
+
+            Builder append(byte[] bytes, int offset, int length) {
+                ensureCapacity(length);
+                System.arraycopy(bytes, offset, mPayload, mLength, length);
+                mLength += length;
+                return this;
+            }
+
+            /** Appends low bytes of the characters. */
+            Builder appendAscii(CharSequence text) {
+                ensureCapacity(text.length());
+                for (int i = 0; i < text.length(); i++) {
+                    mPayload[mLength++] = (byte) text.charAt(i);
+                }
+                return this;
+            }
+
+            int getFrameLength() {
+                return mLength + 4;
+            }
+
+            /**
+             * Writes the frame to the buffer without building a packet.
+             *
+             * @return the frame length.
+             */
+            int encode(byte[] buffer, int offset) {
+                return encodeFrame(mSource, mDestination, mPayload, mLength, buffer, offset);
+            }
+
+            /** Returns the encoded frame in a right-sized array. */
+            byte[] buildFrame() {
+                byte[] frame = new byte[getFrameLength()];
+                encode(frame, 0);
+                return frame;
+            }
+
+            /** Returns a packet with a copy of the payload. */
+            IBusRawPacket build() {
+                return new IBusRawPacket(mSource, mDestination,
+                        Arrays.copyOf(mPayload, mLength));
+            }
+
+            private void ensureCapacity(int count) {
+                final int required = mLength + count;
+                if (required > MAX_PAYLOAD_LENGTH) {
+                    throw new IllegalArgumentException("Payload is too long: " + required);
+                }
+                if (required > mPayload.length) {
+                    mPayload = Arrays.copyOf(mPayload,
+                            Math.min(Math.max(required, mPayload.length * 2), MAX_PAYLOAD_LENGTH));
+                }
+            }
         }
     }
 
-    static class IBusPacket {
-        final byte source;
-        final int length;
-        final byte destination;
-        final byte[] payload;
+    /**
+     * Decoded IBus packet. Instances are pooled, use {@link #obtain(byte[], int)} to get one and
+     * {@link #recycle()} once the packet is no longer needed.
+     */
+    static final class IBusPacket {
+        private static final int MAX_POOL_SIZE = 32;
+        private static final int MAX_PAYLOAD_LENGTH =
+                IBusDataDecoder.MAX_LENGTH - IBusDataDecoder.MIN_LENGTH;
+
+        private static final Object sPoolSync = new Object();
+        private static IBusPacket sPool;
+        private static int sPoolSize = 0;
+
+        byte source;
+        int length;  // Payload length.
+        byte destination;
+        final byte[] payload = new byte[MAX_PAYLOAD_LENGTH];  // Valid only up to length.
+        long timestampNanos;  // When the frame was read, see PacketBatch#getTimestampNanos().
+        long decodedNanos;  // When the decoder completed the frame.
+
+        private IBusPacket mNext;
+        private boolean mInUse;
+
+        private IBusPacket() { }
+
+        /**
+         * Returns a packet from the pool filled with a raw frame that starts at the given offset
+         * of the buffer.
+         */
+        static IBusPacket obtain(byte[] frame, int offset) {
+            IBusPacket packet = obtain();
+            packet.source = frame[offset];
+            packet.length = (frame[offset + 1] & 0xff) - 2;  // minus destination and checksum.
+            packet.destination = frame[offset + 2];
+            packet.timestampNanos = 0;
+            packet.decodedNanos = 0;
+            System.arraycopy(frame, offset + 3, packet.payload, 0, packet.length);
+            return packet;
+        }
 
-        IBusPacket(IBusRawPacket rawPacket) {
-            this.source = rawPacket.source;
-            this.length = rawPacket.packetLength - 2;
-            this.destination = rawPacket.destination;
-            this.payload = Arrays.copyOf(rawPacket.payload, rawPacket.packetLength - 2);
+        /**
+         * Returns a copy of the given packet from the pool, use it to keep a packet owned by
+         * someone else.
+         */
+        static IBusPacket obtain(IBusPacket other) {
+            IBusPacket packet = obtain();
+            packet.source = other.source;
+            packet.length = other.length;
+            packet.destination = other.destination;
+            packet.timestampNanos = other.timestampNanos;
+            packet.decodedNanos = other.decodedNanos;
+            System.arraycopy(other.payload, 0, packet.payload, 0, other.length);
+            return packet;
+        }
+
+        private static IBusPacket obtain() {
+            IBusPacket packet = null;
+            synchronized (sPoolSync) {
+                if (sPool != null) {
+                    packet = sPool;
+                    sPool = packet.mNext;
+                    packet.mNext = null;
+                    sPoolSize--;
+                }
+            }
+            if (packet == null) {
+                packet = new IBusPacket();
+            }
+            packet.mInUse = true;
+            return packet;
+        }
+
+        /**
+         * Returns the packet to the pool, it must not be accessed after this call.
+         */
+        void recycle() {
+            if (!mInUse) {
+                throw new IllegalStateException("Packet is already recycled: " + this);
+            }
+            mInUse = false;
+            synchronized (sPoolSync) {
+                if (sPoolSize < MAX_POOL_SIZE) {
+                    mNext = sPool;
+                    sPool = this;
+                    sPoolSize++;
+                }
+            }
         }
 
         @Override
@@ -776,19 +1245,133 @@ public class BmwIBusService extends Service {
             return "IBusPacket { from: 0x" + Integer.toHexString(0xff & source)
                     + " to 0x" + Integer.toHexString(0xff & destination)
                     + " len: " + length
-                    + " payload: " + HexDump.toHexString(payload)
+                    + " payload: " + HexDump.toHexString(payload, 0, length)
                     + "}";
         }
     }
 
+    /**
+     * Read-only view over a frame in the decoder's buffer. Doesn't copy anything, so it is valid
+     * only for the duration of {@link IBusDataDecoder.FrameListener#onFrame(byte[], int, int)}.
+     * Use {@link #retain()} to keep the packet.
+     */
+    static final class IBusPacketView {
+        private byte[] mFrame;
+        private int mOffset;
+
+        void set(byte[] frame, int offset) {
+            mFrame = frame;
+            mOffset = offset;
+        }
+
+        byte getSource() {
+            return mFrame[mOffset];
+        }
+
+        byte getDestination() {
+            return mFrame[mOffset + 2];
+        }
+
+        int getPayloadLength() {
+            return (mFrame[mOffset + 1] & 0xff) - 2;  // minus destination and checksum.
+        }
+
+        byte getPayload(int index) {
+            if (index < 0 || index >= getPayloadLength()) {
+                throw new IndexOutOfBoundsException("Index: " + index
+                        + ", payload length: " + getPayloadLength());
+            }
+            return mFrame[mOffset + 3 + index];
+        }
+
+        /**
+         * Copies the frame into a pooled packet, caller is responsible for recycling it.
+         */
+        IBusPacket retain() {
+            return IBusPacket.obtain(mFrame, mOffset);
+        }
+
+        @Override
+        public String toString() {
+            return "IBusPacketView { from: 0x" + Integer.toHexString(0xff & getSource())
+                    + " to 0x" + Integer.toHexString(0xff & getDestination())
+                    + " len: " + getPayloadLength()
+                    + " payload: " + HexDump.toHexString(mFrame, mOffset + 3, getPayloadLength())
+                    + "}";
+        }
+    }
+
+    /**
+     * Packets decoded from a single chunk of data read from the USB port. The batch owns its
+     * packets and recycles them after delivery, use {@link IBusPacket#obtain(IBusPacket)} to keep
+     * any of them.
+     */
+    static final class PacketBatch {
+        private IBusPacket[] mPackets = new IBusPacket[16];
+        private int mSize;
+        private long mTimestampNanos;
+
+        int size() {
+            return mSize;
+        }
+
+        IBusPacket get(int index) {
+            if (index >= mSize) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+            }
+            return mPackets[index];
+        }
+
+        /**
+         * Returns {@link SystemClock#elapsedRealtimeNanos()} when the chunk was read.
+         */
+        long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        /**
+         * Adds the packet stamped with the time of this batch, the batch owns it from now.
+         */
+        void add(IBusPacket packet) {
+            packet.timestampNanos = mTimestampNanos;
+            if (mSize == mPackets.length) {
+                mPackets = Arrays.copyOf(mPackets, mSize * 2);
+            }
+            mPackets[mSize++] = packet;
+        }
+
+        /**
+         * Recycles all packets and starts a new batch.
+         */
+        void reset(long timestampNanos) {
+            for (int i = 0; i < mSize; i++) {
+                mPackets[i].recycle();
+                mPackets[i] = null;
+            }
+            mSize = 0;
+            mTimestampNanos = timestampNanos;
+        }
+    }
+
     interface IBusPacketListener {
-        void onIBusPacket(IBusPacket packet);
+        /**
+         * Called once per chunk of data read from the USB port with all packets decoded from it.
+         * Packets are valid only for the duration of this call.
+         */
+        void onIBusPackets(PacketBatch batch);
     }
 
     class LocalBinder extends Binder {
         BmwIBusService getService() {
             return BmwIBusService.this;
         }
+
+        /**
+         * Returns a snapshot of latencies of the given stage of button handling.
+         */
+        LatencyHistogram getLatency(LatencyTracker.Stage stage) {
+            return mLatencyTracker.getHistogram(stage);
+        }
     }
 
     interface CancelShutdownListener {
@@ -802,6 +1385,57 @@ public class BmwIBusService extends Service {
         }
     }
 
+    /**
+     * Passes the bus sense line to the transmitter. The first report of a port marks every line as
+     * changed, and an adapter that doesn't sense the bus may hold the line at any level, so the
+     * line is only trusted after it has gone from busy to free once.
+     */
+    private class BusSenseListener implements UsbSerialPort.ModemLineListener {
+        // Synchronized by 'this'
+        private ConfigStorage.BusBusyPolarity mPolarity =
+                ConfigStorage.DEFAULT_BUS_BUSY_POLARITY;
+        private boolean mLevelKnown;
+        private boolean mBusy;
+        private boolean mArmed;
+
+        synchronized void reset(ConfigStorage.BusBusyPolarity polarity) {
+            if (DEBUG) Log.d(TAG, "Bus busy polarity: " + polarity);
+            mPolarity = polarity;
+            mLevelKnown = false;
+            mArmed = false;
+            mTransmitter.onBusBusyChanged(false, SystemClock.elapsedRealtimeNanos());
+        }
+
+        @Override
+        public synchronized void onModemLinesChanged(UsbSerialPort port, int lines, int changed) {
+            if (mPolarity == ConfigStorage.BusBusyPolarity.DISABLED) {
+                return;
+            }
+            final boolean busy = ((lines & BUS_BUSY_MODEM_LINE) != 0)
+                    == (mPolarity == ConfigStorage.BusBusyPolarity.WHEN_SET);
+            final boolean edge = mLevelKnown && busy != mBusy;
+            mLevelKnown = true;
+            mBusy = busy;
+            if (!edge) {
+                return;
+            }
+            if (!mArmed) {
+                if (busy) {
+                    return;
+                }
+                mArmed = true;
+                if (DEBUG) Log.d(TAG, "Bus sense armed");
+            }
+            mTransmitter.onBusBusyChanged(busy, SystemClock.elapsedRealtimeNanos());
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "polarity: " + mPolarity + ", armed: " + mArmed
+                    + (mArmed ? ", busy: " + mBusy : "");
+        }
+    }
+
     private class DisplayOffTask extends TimerTask {
         @Override
         public void run() {
@@ -0,0 +1,226 @@
+package org.bimdroid.bimservice;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recognizes gestures of steering wheel buttons from the raw push / hold / release frames.
+ *
+ * <p>
+ *     Detector doesn't use timers, all decisions are made from timestamps of received frames.
+ *     MFL keeps sending hold frames while a button is held, so long press and repeat are detected
+ *     when such frame arrives. Buttons that don't report release (e.g. volume) produce a click on
+ *     every press that isn't a duplicate within the debounce window.
+ * </p>
+ *
+ * <p>
+ *     Not thread safe, should be used from a single thread.
+ * </p>
+ */
+class ButtonGestureDetector {
+
+    private static final String TAG = DebugUtils.TAG + ".Gesture";
+
+    /** Raw event of a button as it was received from the bus. */
+    enum Action {
+        PUSH,
+        HOLD,
+        RELEASE
+    }
+
+    /** Recognized gestures. */
+    enum Gesture {
+        /** Button went down. */
+        PRESS,
+        /** Button went up, reported for all buttons that report release. */
+        RELEASE,
+        /** Short press, reported on release or on press if button doesn't report release. */
+        CLICK,
+        /** Button is held longer than long press timeout, reported once per press. */
+        LONG_PRESS,
+        /** Button is still held after long press, reported at most once per repeat interval. */
+        REPEAT,
+        /** Second press within double press window, reported instead of the second click. */
+        DOUBLE_PRESS
+    }
+
+    interface Callback {
+        /**
+         * @param repeatCount number of {@link Gesture#REPEAT} gestures reported for the current
+         *            press including this one, 0 for other gestures.
+         */
+        void onGesture(int button, Gesture gesture, int repeatCount);
+    }
+
+    /** Timing of a button, zero window disables the corresponding gesture. */
+    static class Config {
+        final boolean reportsRelease;
+        final long debounceNanos;
+        final long longPressNanos;
+        final long repeatIntervalNanos;
+        final long doublePressNanos;
+
+        Config(boolean reportsRelease, long debounceMs, long longPressMs, long repeatIntervalMs,
+                long doublePressMs) {
+            this.reportsRelease = reportsRelease;
+            this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMs);
+            this.longPressNanos = TimeUnit.MILLISECONDS.toNanos(longPressMs);
+            this.repeatIntervalNanos = TimeUnit.MILLISECONDS.toNanos(repeatIntervalMs);
+            this.doublePressNanos = TimeUnit.MILLISECONDS.toNanos(doublePressMs);
+        }
+    }
+
+    private static class ButtonState {
+        final Config config;
+
+        boolean pressed;
+        boolean longPressed;
+        boolean doublePressed;
+        boolean hasPreviousClick;
+        int repeatCount;
+        long pressTimeNanos;
+        long lastFrameTimeNanos;
+        long lastRepeatTimeNanos;
+        long lastClickTimeNanos;
+
+        long debouncedCount;
+        long gestureCount;
+
+        ButtonState(Config config) {
+            this.config = config;
+        }
+    }
+
+    private final Callback mCallback;
+    private final SparseArray<ButtonState> mButtons = new SparseArray<>();
+
+    ButtonGestureDetector(Callback callback) {
+        mCallback = callback;
+    }
+
+    void addButton(int button, Config config) {
+        mButtons.put(button, new ButtonState(config));
+    }
+
+    /**
+     * Feeds a frame of the button.
+     *
+     * @param timestampNanos {@link android.os.SystemClock#elapsedRealtimeNanos()} when the frame
+     *            was received.
+     */
+    void onButtonEvent(int button, Action action, long timestampNanos) {
+        ButtonState state = mButtons.get(button);
+        if (state == null) {
+            Log.w(TAG, "Event of unknown button: 0x" + Integer.toHexString(button));
+            return;
+        }
+
+        switch (action) {
+            case PUSH:
+                if (!onPush(button, state, timestampNanos)) {
+                    // Dropped frames don't extend the debounce window.
+                    return;
+                }
+                break;
+            case HOLD:
+                // Push frame was lost, the button is down anyway.
+                if (!state.pressed && !onPush(button, state, timestampNanos)) {
+                    return;
+                }
+                onHold(button, state, timestampNanos);
+                break;
+            case RELEASE:
+                if (state.pressed) {
+                    onRelease(button, state, timestampNanos);
+                }
+                break;
+        }
+        state.lastFrameTimeNanos = timestampNanos;
+    }
+
+    /**
+     * @return {@code false} if the frame was dropped by the debounce.
+     */
+    private boolean onPush(int button, ButtonState state, long timestampNanos) {
+        Config config = state.config;
+        if (state.lastFrameTimeNanos != 0
+                && timestampNanos - state.lastFrameTimeNanos < config.debounceNanos
+                && (state.pressed || !config.reportsRelease)) {
+            state.debouncedCount++;
+            return false;
+        }
+        if (state.pressed) {
+            // Release frame was lost, finish the previous press where it was last seen.
+            onRelease(button, state, state.lastFrameTimeNanos);
+        }
+
+        state.pressed = config.reportsRelease;
+        state.longPressed = false;
+        state.repeatCount = 0;
+        state.pressTimeNanos = timestampNanos;
+        state.doublePressed = config.doublePressNanos > 0 && state.hasPreviousClick
+                && timestampNanos - state.lastClickTimeNanos < config.doublePressNanos;
+
+        report(button, state, Gesture.PRESS);
+        if (state.doublePressed) {
+            state.hasPreviousClick = false;
+            report(button, state, Gesture.DOUBLE_PRESS);
+        } else if (!config.reportsRelease) {
+            onClick(button, state, timestampNanos);
+        }
+        return true;
+    }
+
+    private void onHold(int button, ButtonState state, long timestampNanos) {
+        Config config = state.config;
+        if (config.longPressNanos == 0) {
+            return;
+        }
+        if (!state.longPressed) {
+            if (timestampNanos - state.pressTimeNanos >= config.longPressNanos) {
+                state.longPressed = true;
+                state.lastRepeatTimeNanos = timestampNanos;
+                report(button, state, Gesture.LONG_PRESS);
+            }
+        } else if (config.repeatIntervalNanos > 0
+                && timestampNanos - state.lastRepeatTimeNanos >= config.repeatIntervalNanos) {
+            state.lastRepeatTimeNanos = timestampNanos;
+            state.repeatCount++;
+            report(button, state, Gesture.REPEAT);
+        }
+    }
+
+    private void onRelease(int button, ButtonState state, long timestampNanos) {
+        state.pressed = false;
+        report(button, state, Gesture.RELEASE);
+        if (!state.longPressed && !state.doublePressed) {
+            onClick(button, state, timestampNanos);
+        }
+    }
+
+    private void onClick(int button, ButtonState state, long timestampNanos) {
+        state.hasPreviousClick = true;
+        state.lastClickTimeNanos = timestampNanos;
+        report(button, state, Gesture.CLICK);
+    }
+
+    private void report(int button, ButtonState state, Gesture gesture) {
+        state.gestureCount++;
+        mCallback.onGesture(button, gesture,
+                gesture == Gesture.REPEAT ? state.repeatCount : 0);
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("ButtonGestureDetector:");
+        for (int i = 0; i < mButtons.size(); i++) {
+            ButtonState state = mButtons.valueAt(i);
+            writer.println("  button: 0x" + Integer.toHexString(mButtons.keyAt(i))
+                    + ", pressed: " + state.pressed
+                    + ", gestures: " + state.gestureCount
+                    + ", debounced: " + state.debouncedCount);
+        }
+    }
+}
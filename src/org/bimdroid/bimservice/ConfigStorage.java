@@ -15,6 +15,24 @@ public class ConfigStorage {
     private static final String KEY_VENDOR_ID = "KEY_VENDOR_ID";
     private static final String KEY_PRODUCT_ID = "KEY_PRODUCT_ID";
     private static final String KEY_SERIAL_NUMBER = "KEY_SERIAL_NUMBER";
+    // Missing in configs stored before multi-port chips were supported, port 0 is used then.
+    private static final String KEY_PORT_NUMBER = "KEY_PORT_NUMBER";
+    private static final String KEY_BUS_BUSY_POLARITY_PREFIX = "KEY_BUS_BUSY_POLARITY_";
+
+    /**
+     * Level of the bus sense line (CTS) of an adapter while the bus is busy.
+     */
+    enum BusBusyPolarity {
+        /** The adapter doesn't sense the bus. */
+        DISABLED,
+        /** The line is set while the bus is busy. */
+        WHEN_SET,
+        /** The line is clear while the bus is busy. */
+        WHEN_CLEAR
+    }
+
+    // Resler type adapters set CTS while the bus is busy.
+    static final BusBusyPolarity DEFAULT_BUS_BUSY_POLARITY = BusBusyPolarity.WHEN_SET;
 
     private static volatile Listener sListener;
 
@@ -32,7 +50,8 @@ public class ConfigStorage {
         if (defaultPortExists) {
             SerialPortIdentifier port = new SerialPortIdentifier(pref.getInt(KEY_VENDOR_ID, 0),
                     pref.getInt(KEY_PRODUCT_ID, 0),
-                    pref.getString(KEY_SERIAL_NUMBER, ""));
+                    pref.getString(KEY_SERIAL_NUMBER, ""),
+                    pref.getInt(KEY_PORT_NUMBER, 0));
             Log.d(TAG, "readDefaultPort, port: " + port);
             return port;
         } else {
@@ -49,6 +68,7 @@ public class ConfigStorage {
                 .putInt(KEY_VENDOR_ID, serialPortIdentifier.getVendorId())
                 .putInt(KEY_PRODUCT_ID, serialPortIdentifier.getProductId())
                 .putString(KEY_SERIAL_NUMBER, serialPortIdentifier.getSerialNumber())
+                .putInt(KEY_PORT_NUMBER, serialPortIdentifier.getPortNumber())
                 .apply();
 
         Listener listener = sListener;
@@ -58,6 +78,35 @@ public class ConfigStorage {
         }
     }
 
+    /**
+     * Reads the bus busy polarity of the adapter.
+     */
+    static BusBusyPolarity readBusBusyPolarity(Context context, SerialPortIdentifier port) {
+        String value = getPreference(context).getString(busBusyPolarityKey(port), null);
+        if (value == null) {
+            return DEFAULT_BUS_BUSY_POLARITY;
+        }
+        try {
+            return BusBusyPolarity.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "readBusBusyPolarity, unknown value: " + value);
+            return DEFAULT_BUS_BUSY_POLARITY;
+        }
+    }
+
+    static void writeBusBusyPolarity(Context context, SerialPortIdentifier port,
+            BusBusyPolarity polarity) {
+        Log.d(TAG, "writeBusBusyPolarity, port: " + port + ", polarity: " + polarity);
+        getPreference(context).edit()
+                .putString(busBusyPolarityKey(port), polarity.name())
+                .apply();
+    }
+
+    private static String busBusyPolarityKey(SerialPortIdentifier port) {
+        return KEY_BUS_BUSY_POLARITY_PREFIX + port.getVendorId() + "_" + port.getProductId()
+                + "_" + port.getSerialNumber() + "_" + port.getPortNumber();
+    }
+
     public static void registerListner(Listener listener) {
         sListener = listener;
     }
@@ -79,11 +128,13 @@ public class ConfigStorage {
         private final int mVendorId;
         private final int mProductId;
         private final String mSerialNumber;
+        private final int mPortNumber;
 
-        SerialPortIdentifier(int vendorId, int productId, String serialNumber) {
+        SerialPortIdentifier(int vendorId, int productId, String serialNumber, int portNumber) {
             mVendorId = vendorId;
             mProductId = productId;
             mSerialNumber = serialNumber;
+            mPortNumber = portNumber;
         }
 
         int getVendorId() {
@@ -98,12 +149,17 @@ public class ConfigStorage {
             return mSerialNumber;
         }
 
+        int getPortNumber() {
+            return mPortNumber;
+        }
+
         @Override
         public String toString() {
-            return String.format("VendorId: 0x%s, ProductId: 0x%s, Serial Number: %s",
+            return String.format("VendorId: 0x%s, ProductId: 0x%s, Serial Number: %s, Port: %d",
                     Integer.toHexString(getVendorId()),
                     Integer.toHexString(getProductId()),
-                    getSerialNumber());
+                    getSerialNumber(),
+                    getPortNumber());
         }
     }
 }
@@ -0,0 +1,414 @@
+package org.bimdroid.bimservice;
+
+/**
+ * Table driven decoder of the raw IBus byte stream.
+ *
+ * <p>
+ *     IBus frame layout: {@code source | length | destination | payload... | checksum}, where
+ *     length counts destination, payload and checksum bytes and checksum is XOR of all
+ *     preceding bytes of the frame.
+ * </p>
+ *
+ * <p>
+ *     Every byte is classified through a 256-entry lookup table and fed to an explicit state
+ *     transition table. Since we may start listening in the middle of a frame or lose some bytes
+ *     on the bus, every byte that looks like a source address starts a new frame candidate and all
+ *     candidates within the last {@link #MAX_FRAME_SIZE} bytes are advanced in parallel. The first
+ *     candidate whose length and checksum match is reported and the rest are dropped. While we are
+ *     in sync (previous frame was decoded and the next one starts right after it) candidates that
+ *     start inside of the current frame are ignored even if their checksum matches. This keeps the
+ *     cost bounded by {@link #MAX_FRAME_SIZE} steps per input byte with no re-scanning of the
+ *     data.
+ * </p>
+ *
+ * <p>
+ *     Optionally decoder may use timestamps of received chunks to detect bus idle time, see
+ *     {@link #setFrameGap(long, int)}. Idle gap is a hard frame boundary: all pending candidates
+ *     are dropped and the next byte is treated as a frame start, so after joining the bus in the
+ *     middle of the stream we get in sync with the first frame sent after a pause.
+ * </p>
+ *
+ * <p>
+ *     Bytes that the USB adapter received with a line error (parity, framing, etc.) kill every
+ *     candidate that contains them right away, so a corrupted frame is never reported even if its
+ *     checksum happens to match.
+ * </p>
+ *
+ * <p>
+ *     Decoded frames are reported as a view over the internal buffer, the decoder doesn't allocate
+ *     anything after construction.
+ * </p>
+ *
+ * <p>Not thread safe, all methods are expected to be called from the USB read thread.</p>
+ */
+class IBusDataDecoder {
+
+    /** Minimal value of the length byte: destination and checksum. */
+    static final int MIN_LENGTH = 2;
+    /** Maximal value of the length byte that we consider legal. */
+    static final int MAX_LENGTH = 126;
+    /** Source and length bytes are not included into length. */
+    static final int HEADER_SIZE = 2;
+    static final int MAX_FRAME_SIZE = MAX_LENGTH + HEADER_SIZE;
+
+    // Parser states.
+    private static final int STATE_SOURCE = 0;
+    private static final int STATE_LENGTH = 1;
+    private static final int STATE_DESTINATION = 2;
+    private static final int STATE_PAYLOAD = 3;
+    private static final int STATE_CHECKSUM = 4;
+    private static final int STATE_COMPLETE = 5;
+    private static final int STATE_REJECT = 6;
+
+    // Events produced by classifying a byte in the current state.
+    private static final int EVENT_REJECT = 0;
+    private static final int EVENT_ACCEPT = 1;
+    private static final int EVENT_ACCEPT_LAST = 2;  // Accepted and no payload bytes left.
+
+    // State transition table indexed by [state][event].
+    private static final int[][] sTransitions = new int[][] {
+            /* STATE_SOURCE */      { STATE_REJECT, STATE_LENGTH, STATE_LENGTH },
+            /* STATE_LENGTH */      { STATE_REJECT, STATE_DESTINATION, STATE_DESTINATION },
+            /* STATE_DESTINATION */ { STATE_REJECT, STATE_PAYLOAD, STATE_CHECKSUM },
+            /* STATE_PAYLOAD */     { STATE_REJECT, STATE_PAYLOAD, STATE_CHECKSUM },
+            /* STATE_CHECKSUM */    { STATE_REJECT, STATE_COMPLETE, STATE_COMPLETE },
+    };
+
+    // Byte classes, a byte may belong to several classes.
+    private static final int CLASS_ANY = 1;
+    private static final int CLASS_ADDRESS = 1 << 1;
+    private static final int CLASS_LENGTH = 1 << 2;
+
+    // Class that a byte must belong to in order to be accepted, indexed by state.
+    private static final int[] sStateClasses = new int[] {
+            /* STATE_SOURCE */      CLASS_ADDRESS,
+            /* STATE_LENGTH */      CLASS_LENGTH,
+            /* STATE_DESTINATION */ CLASS_ADDRESS,
+            /* STATE_PAYLOAD */     CLASS_ANY,
+            /* STATE_CHECKSUM */    CLASS_ANY,
+    };
+
+    private static final int[] sKnownAddresses = new int[] {
+            0x00,  // Broadcast
+            0x18,  // CDW - CDC CD-Player
+            0x30,  // Unknown
+            0x3B,  // NAV Navigation/ Video module
+            0x3F,  // Unknown
+            0x43,  // Menu screen
+            0x44,  // Unknown
+            0x50,  // MFL Multi Functional Steering Wheel Buttons
+            0x60,  // PDC Park Distance Control
+            0x68,  // RAD Radio
+            0x6A,  // DSP Digital Sound Processor
+            0x7F,  // Unknown
+            0x80,  // IKE Instrument Kombi Electronics
+            0xA4,  // Unknown, observed during key ignition on / off
+            0xA8,  // Unknown
+            0xBB,  // TV Module
+            0xBF,  // LCM Light Control Module
+            0xC0,  // MID Multi-Information Display Buttons
+            0xC8,  // TEL Telephone
+            0xD0,  // Navigation Location
+            0xE7,  // OBC TextBar
+            0xE8,  // Unknown
+            0xED,  // Lights, Wipers, Seat Memory
+            0xF0,  // BMB Board Monitor Buttons
+            0xFF,  // Broadcast
+    };
+
+    // Lookup table of byte classes indexed by unsigned byte value.
+    private static final byte[] sByteClasses = new byte[256];
+
+    static {
+        for (int i = 0; i < sByteClasses.length; i++) {
+            int classes = CLASS_ANY;
+            if (i >= MIN_LENGTH && i <= MAX_LENGTH) {
+                classes |= CLASS_LENGTH;
+            }
+            sByteClasses[i] = (byte) classes;
+        }
+        for (int address : sKnownAddresses) {
+            sByteClasses[address] |= CLASS_ADDRESS;
+        }
+    }
+
+    interface FrameListener {
+        /**
+         * Called for every decoded frame. Frame bytes (including source, length and checksum)
+         * are valid only for the duration of this call.
+         */
+        void onFrame(byte[] frame, int offset, int length);
+    }
+
+    private final FrameListener mListener;
+
+    // Holds bytes that are not yet decoded or discarded starting at mConsumed. Twice as big as
+    // the largest frame, so compaction happens at most once per MAX_FRAME_SIZE bytes.
+    private final byte[] mBuffer = new byte[2 * MAX_FRAME_SIZE];
+    private int mEnd;
+    private int mConsumed;  // Bytes before this index were either decoded or discarded.
+    private boolean mSynced;
+
+    // Frame candidates ordered by their start index, [0, mCandidateCount) are alive.
+    private final int[] mCandidateStart = new int[MAX_FRAME_SIZE];
+    private final int[] mCandidateState = new int[MAX_FRAME_SIZE];
+    private final int[] mCandidateChecksum = new int[MAX_FRAME_SIZE];
+    private final int[] mCandidatePayloadRemaining = new int[MAX_FRAME_SIZE];
+    private int mCandidateCount;
+
+    private long mFramesDecoded;
+    private long mBytesDiscarded;
+    private long mSyncLostCount;
+    private long mIdleGapCount;
+    private long mLineErrorCount;
+
+    // Gap aware framing, disabled if mGapNanos is 0.
+    private long mCharTimeNanos;
+    private long mGapNanos;
+    private long mLastChunkNanos;
+    private boolean mAtFrameBoundary;
+
+    IBusDataDecoder(FrameListener listener) {
+        mListener = listener;
+    }
+
+    static boolean isKnownAddress(byte b) {
+        return (sByteClasses[b & 0xff] & CLASS_ADDRESS) != 0;
+    }
+
+    void reset() {
+        mEnd = 0;
+        mConsumed = 0;
+        mSynced = false;
+        mCandidateCount = 0;
+        mLastChunkNanos = 0;
+        mAtFrameBoundary = false;
+    }
+
+    /**
+     * Enables gap aware framing.
+     *
+     * @param charTimeNanos time it takes to transmit one character (including start, parity and
+     *            stop bits) on the bus
+     * @param gapChars bus idle time, in characters, that is considered a frame boundary. Should be
+     *            longer than the time USB adapter may hold received data before passing it to
+     *            us. Pass {@code 0} to disable gap aware framing.
+     */
+    void setFrameGap(long charTimeNanos, int gapChars) {
+        mCharTimeNanos = charTimeNanos;
+        mGapNanos = charTimeNanos * gapChars;
+        mLastChunkNanos = 0;
+    }
+
+    /** Number of frames reported to the listener. */
+    long getFramesDecoded() {
+        return mFramesDecoded;
+    }
+
+    /** Number of bytes that didn't belong to any valid frame. */
+    long getBytesDiscarded() {
+        return mBytesDiscarded;
+    }
+
+    /** How many times bytes were discarded right after successfully decoded frame. */
+    long getSyncLostCount() {
+        return mSyncLostCount;
+    }
+
+    /** Number of idle gaps that were treated as frame boundaries. */
+    long getIdleGapCount() {
+        return mIdleGapCount;
+    }
+
+    /** Number of bytes received with a line error. */
+    long getLineErrorCount() {
+        return mLineErrorCount;
+    }
+
+    /**
+     * Decodes a chunk of data read at the given time.
+     *
+     * @param timestampNanos {@link android.os.SystemClock#elapsedRealtimeNanos()} when the chunk
+     *            was received, used by gap aware framing
+     */
+    void onDataReceived(byte[] buf, int offset, int length, long timestampNanos) {
+        onDataReceived(buf, offset, length, timestampNanos, null, 0);
+    }
+
+    /**
+     * Decodes a chunk of data that has bytes received with line errors.
+     *
+     * @param errorOffsets ascending offsets of bad bytes, relative to {@code offset}
+     * @param errorCount number of valid entries in {@code errorOffsets}
+     */
+    void onDataReceived(byte[] buf, int offset, int length, long timestampNanos,
+            int[] errorOffsets, int errorCount) {
+        if (mGapNanos > 0 && length > 0) {
+            // Timestamp is taken when the last byte of the chunk arrived.
+            long chunkStartNanos = timestampNanos - length * mCharTimeNanos;
+            if (mLastChunkNanos != 0 && chunkStartNanos - mLastChunkNanos > mGapNanos) {
+                onFrameBoundary();
+            }
+            mLastChunkNanos = timestampNanos;
+        }
+        if (errorCount == 0) {
+            onDataReceived(buf, offset, length);
+            return;
+        }
+
+        int start = offset;
+        for (int e = 0; e < errorCount; e++) {
+            final int bad = offset + errorOffsets[e];
+            if (bad < start || bad >= offset + length) {
+                continue;  // Duplicate or out of the chunk.
+            }
+            onDataReceived(buf, start, bad - start);
+            onCorruptByteReceived();
+            start = bad + 1;
+        }
+        onDataReceived(buf, start, offset + length - start);
+    }
+
+    void onDataReceived(byte[] buf, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            onByteReceived(buf[i]);
+        }
+    }
+
+    private void onByteReceived(byte value) {
+        if (mEnd == mBuffer.length) {
+            compact();
+        }
+        final int pos = mEnd;
+        mBuffer[mEnd++] = value;
+        final int b = value & 0xff;
+
+        int alive = 0;
+        int frameStart = -1;
+        for (int i = 0; i < mCandidateCount; i++) {
+            int nextState = advanceCandidate(i, b);
+            if (nextState == STATE_REJECT) {
+                continue;
+            }
+            if (nextState == STATE_COMPLETE) {
+                boolean insideCurrentFrame = alive > 0 && mSynced
+                        && mCandidateStart[0] == mConsumed;
+                if (insideCurrentFrame) {
+                    continue;
+                }
+                frameStart = mCandidateStart[i];
+                break;
+            }
+            moveCandidate(i, alive++);
+        }
+
+        if (frameStart >= 0) {
+            discard(frameStart - mConsumed);
+            mFramesDecoded++;
+            mListener.onFrame(mBuffer, frameStart, mEnd - frameStart);
+            mCandidateCount = 0;
+            mConsumed = mEnd;
+            mSynced = true;
+            mAtFrameBoundary = false;
+            return;
+        }
+
+        mCandidateCount = alive;
+        if (isKnownAddress(value) || mAtFrameBoundary) {
+            int i = mCandidateCount++;
+            mCandidateStart[i] = pos;
+            mCandidateState[i] = sTransitions[STATE_SOURCE][EVENT_ACCEPT];
+            mCandidateChecksum[i] = b;
+            mCandidatePayloadRemaining[i] = 0;
+        }
+
+        mAtFrameBoundary = false;
+
+        int oldestStart = mCandidateCount > 0 ? mCandidateStart[0] : mEnd;
+        discard(oldestStart - mConsumed);
+    }
+
+    /**
+     * The byte can't be trusted, neither can any frame that contains it.
+     */
+    private void onCorruptByteReceived() {
+        mLineErrorCount++;
+        discard(mEnd - mConsumed);
+        mBytesDiscarded++;
+        mCandidateCount = 0;
+        mAtFrameBoundary = false;
+    }
+
+    private void onFrameBoundary() {
+        mIdleGapCount++;
+        discard(mEnd - mConsumed);
+        mCandidateCount = 0;
+        // Next byte is a frame start even if its source address is unknown to us.
+        mSynced = true;
+        mAtFrameBoundary = true;
+    }
+
+    private int advanceCandidate(int i, int b) {
+        final int state = mCandidateState[i];
+        int event;
+        if ((sByteClasses[b] & sStateClasses[state]) == 0) {
+            event = EVENT_REJECT;
+        } else {
+            switch (state) {
+                case STATE_LENGTH:
+                    mCandidatePayloadRemaining[i] = b - MIN_LENGTH;
+                    event = EVENT_ACCEPT;
+                    break;
+                case STATE_DESTINATION:
+                    event = mCandidatePayloadRemaining[i] == 0 ? EVENT_ACCEPT_LAST : EVENT_ACCEPT;
+                    break;
+                case STATE_PAYLOAD:
+                    event = --mCandidatePayloadRemaining[i] == 0
+                            ? EVENT_ACCEPT_LAST : EVENT_ACCEPT;
+                    break;
+                case STATE_CHECKSUM:
+                    event = (mCandidateChecksum[i] ^ b) == 0 ? EVENT_ACCEPT : EVENT_REJECT;
+                    break;
+                default:
+                    event = EVENT_ACCEPT;
+            }
+        }
+
+        final int nextState = sTransitions[state][event];
+        mCandidateState[i] = nextState;
+        mCandidateChecksum[i] ^= b;
+        return nextState;
+    }
+
+    private void moveCandidate(int from, int to) {
+        if (from != to) {
+            mCandidateStart[to] = mCandidateStart[from];
+            mCandidateState[to] = mCandidateState[from];
+            mCandidateChecksum[to] = mCandidateChecksum[from];
+            mCandidatePayloadRemaining[to] = mCandidatePayloadRemaining[from];
+        }
+    }
+
+    private void discard(int count) {
+        if (count <= 0) {
+            return;
+        }
+        mBytesDiscarded += count;
+        mConsumed += count;
+        if (mSynced) {
+            mSynced = false;
+            mSyncLostCount++;
+        }
+    }
+
+    private void compact() {
+        final int shift = mConsumed;
+        System.arraycopy(mBuffer, shift, mBuffer, 0, mEnd - shift);
+        for (int i = 0; i < mCandidateCount; i++) {
+            mCandidateStart[i] -= shift;
+        }
+        mEnd -= shift;
+        mConsumed = 0;
+    }
+}
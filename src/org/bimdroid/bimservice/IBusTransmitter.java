@@ -0,0 +1,361 @@
+package org.bimdroid.bimservice;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.hoho.android.usbserial.util.FrameRing;
+import com.hoho.android.usbserial.util.HexDump;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends frames to the bus one by one, avoiding and detecting collisions with other modules.
+ *
+ * <p>
+ *     IBus is multi-master, any module may start a frame once the bus is idle. A frame is written
+ *     only after no data was received for the idle time plus a random jitter. Every byte we send
+ *     is received back, so a frame is delivered once the decoder reports exactly the same frame.
+ *     If it doesn't show up in time, the frame was destroyed by a collision and it is sent again
+ *     after a random exponential backoff.
+ * </p>
+ *
+ * <p>
+ *     Receive timestamps come from USB reads, so they lag the bus by the adapter latency, the
+ *     idle time must be longer than that.
+ * </p>
+ *
+ * <p>
+ *     Some adapters sense the bus in hardware and signal it on a modem line, see
+ *     {@link #onBusBusyChanged(boolean, long)}. Frames are then held while the line says the bus
+ *     is busy, which catches a module that started sending before its bytes reached us.
+ * </p>
+ */
+class IBusTransmitter {
+
+    private static final String TAG = DebugUtils.TAG + ".Transmitter";
+    private static final boolean DEBUG = true;
+
+    static final int MAX_ATTEMPTS = 4;
+    private static final int QUEUE_CAPACITY = 32;
+    private static final int IDLE_JITTER_CHARS = 4;
+    private static final long BACKOFF_BASE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // Time for our frame to come back through USB on top of its transmission time.
+    private static final long ECHO_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    // How long to wait for room in the write ring.
+    private static final long WRITE_TIMEOUT_MS = 100;
+    // Times a frame may find the write ring full before it's dropped, i.e. about a second.
+    private static final int MAX_WRITE_STALLS = 10;
+
+    enum DeliveryStatus {
+        /** The frame was seen on the bus. */
+        DELIVERED,
+        /** The frame wasn't seen on the bus after {@link #MAX_ATTEMPTS} attempts. */
+        FAILED,
+        /** The frame wasn't sent, the queue is full or the port isn't open. */
+        DROPPED,
+        /** The frame wasn't sent, a newer frame for the same slot replaced it in the queue. */
+        SUPERSEDED
+    }
+
+    interface FrameWriter {
+        /**
+         * Writes the frame to the port, returns {@code null} if the port isn't open.
+         */
+        FrameRing.Result write(byte[] frame, int offset, int length, long timeoutMs);
+    }
+
+    private static class Transmission extends TransmitQueue.Entry {
+        final SettableFuture<DeliveryStatus> status = new SettableFuture<>();
+
+        Transmission(byte[] frame, TransmitQueue.Priority priority) {
+            super(frame, priority);
+        }
+
+        boolean matches(byte[] buffer, int offset, int length) {
+            if (length != frame.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buffer[offset + i] != frame[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final FrameWriter mWriter;
+    private final long mCharTimeNanos;
+    private volatile long mIdleNanos;
+    private final TransmitQueue<Transmission> mQueue = new TransmitQueue<>(QUEUE_CAPACITY);
+    private final Random mRandom = new Random();
+    private final Thread mThread;
+
+    private volatile long mLastActivityNanos;
+
+    // Synchronized by 'this'
+    private Transmission mInFlight;
+    private boolean mEchoReceived;
+    private boolean mBusBusy;
+
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+    private final AtomicLong mRetryCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mSupersededCount = new AtomicLong();
+    private final AtomicLong mBusyWaitCount = new AtomicLong();
+    private final AtomicLong mWriteStallCount = new AtomicLong();
+
+    /**
+     * @param charTimeNanos time to transmit one character on the bus
+     * @param idleChars bus must be idle for this number of characters before we start a frame
+     */
+    IBusTransmitter(FrameWriter writer, long charTimeNanos, int idleChars) {
+        mWriter = writer;
+        mCharTimeNanos = charTimeNanos;
+        mIdleNanos = charTimeNanos * idleChars;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                transmitLoop();
+            }
+        }, IBusTransmitter.class.getSimpleName());
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Changes the idle time required before a frame, e.g. when the adapter latency changes.
+     */
+    void setIdleChars(int idleChars) {
+        mIdleNanos = mCharTimeNanos * idleChars;
+    }
+
+    void quit() {
+        mThread.interrupt();
+    }
+
+    /**
+     * Queues a copy of the frame for transmission.
+     *
+     * @param supersede replace a queued frame with the same destination and command byte, its
+     *            status becomes {@link DeliveryStatus#SUPERSEDED}.
+     * @return future that is completed with the delivery status of the frame.
+     */
+    SettableFuture<DeliveryStatus> send(byte[] frame, int offset, int length,
+            TransmitQueue.Priority priority, boolean supersede) {
+        return send(Arrays.copyOfRange(frame, offset, offset + length), priority, supersede);
+    }
+
+    /**
+     * Queues the frame for transmission, the frame must not be modified afterwards.
+     *
+     * @see #send(byte[], int, int, TransmitQueue.Priority, boolean)
+     */
+    SettableFuture<DeliveryStatus> send(byte[] frame, TransmitQueue.Priority priority,
+            boolean supersede) {
+        Transmission transmission = new Transmission(frame, priority);
+        Transmission rejected = mQueue.offer(transmission, supersede);
+        if (rejected == transmission) {
+            Log.w(TAG, "Queue is full, dropping: " + HexDump.toHexString(transmission.frame));
+            complete(transmission, DeliveryStatus.DROPPED);
+        } else if (rejected != null) {
+            if (DEBUG) Log.d(TAG, "Superseded: " + HexDump.toHexString(rejected.frame));
+            complete(rejected, DeliveryStatus.SUPERSEDED);
+        }
+        return transmission.status;
+    }
+
+    /**
+     * Called when data is received from the bus.
+     *
+     * @param timestampNanos {@link SystemClock#elapsedRealtimeNanos()} of the read.
+     */
+    void onBusActivity(long timestampNanos) {
+        mLastActivityNanos = timestampNanos;
+    }
+
+    /**
+     * Called when the hardware bus sense line of the adapter changes.
+     *
+     * @param timestampNanos {@link SystemClock#elapsedRealtimeNanos()} of the change.
+     */
+    void onBusBusyChanged(boolean busy, long timestampNanos) {
+        synchronized (this) {
+            mBusBusy = busy;
+            if (!busy) {
+                notifyAll();
+            }
+        }
+        // The bus was active until now, idle time is counted from here.
+        mLastActivityNanos = timestampNanos;
+    }
+
+    /**
+     * Called for every frame decoded from the bus, including our own ones.
+     */
+    void onFrameReceived(byte[] frame, int offset, int length) {
+        synchronized (this) {
+            if (mInFlight != null && mInFlight.matches(frame, offset, length)) {
+                mEchoReceived = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void transmitLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                transmit(mQueue.take());
+            }
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Transmitter interrupted.");
+        } finally {
+            Transmission transmission;
+            while ((transmission = mQueue.poll()) != null) {
+                complete(transmission, DeliveryStatus.DROPPED);
+            }
+        }
+    }
+
+    private void transmit(Transmission transmission) throws InterruptedException {
+        final byte[] frame = transmission.frame;
+        final long echoTimeoutNanos = frame.length * mCharTimeNanos + ECHO_MARGIN_NANOS;
+        try {
+            int attempt = 1;
+            int stalls = 0;
+            while (attempt <= MAX_ATTEMPTS) {
+                waitForIdleBus();
+
+                synchronized (this) {
+                    mInFlight = transmission;
+                    mEchoReceived = false;
+                }
+                FrameRing.Result result = mWriter.write(frame, 0, frame.length, WRITE_TIMEOUT_MS);
+                if (result == null || result == FrameRing.Result.DROPPED) {
+                    complete(transmission, DeliveryStatus.DROPPED);
+                    return;
+                }
+                if (result == FrameRing.Result.BLOCKED) {
+                    // Nothing went out, the write ring is full. It's not a collision, so the
+                    // attempt isn't used up.
+                    mWriteStallCount.incrementAndGet();
+                    if (++stalls > MAX_WRITE_STALLS) {
+                        Log.w(TAG, "Write ring stays full, dropping frame: "
+                                + HexDump.toHexString(frame));
+                        complete(transmission, DeliveryStatus.DROPPED);
+                        return;
+                    }
+                    Log.w(TAG, "Write stall, ring is full. Frame: " + HexDump.toHexString(frame));
+                    continue;
+                }
+                if (awaitEcho(echoTimeoutNanos)) {
+                    if (DEBUG) Log.d(TAG, "Delivered after " + attempt + " attempt(s): "
+                            + HexDump.toHexString(frame));
+                    complete(transmission, DeliveryStatus.DELIVERED);
+                    return;
+                }
+                Log.w(TAG, "No echo, collision? Attempt: " + attempt + ", frame: "
+                        + HexDump.toHexString(frame));
+                if (++attempt <= MAX_ATTEMPTS) {
+                    mRetryCount.incrementAndGet();
+                    backoff(attempt);
+                }
+            }
+            complete(transmission, DeliveryStatus.FAILED);
+        } finally {
+            synchronized (this) {
+                mInFlight = null;
+            }
+        }
+    }
+
+    private void waitForIdleBus() throws InterruptedException {
+        final long requiredIdleNanos =
+                mIdleNanos + mRandom.nextInt(IDLE_JITTER_CHARS + 1) * mCharTimeNanos;
+        while (true) {
+            awaitBusFree();
+            final long idleNanos = SystemClock.elapsedRealtimeNanos() - mLastActivityNanos;
+            if (idleNanos >= requiredIdleNanos) {
+                return;
+            }
+            TimeUnit.NANOSECONDS.sleep(requiredIdleNanos - idleNanos);
+        }
+    }
+
+    private synchronized void awaitBusFree() throws InterruptedException {
+        if (!mBusBusy) {
+            return;
+        }
+        mBusyWaitCount.incrementAndGet();
+        // No frame is longer than this, a line that stays busy is stuck or means something else.
+        final long deadline = System.nanoTime() + 2 * IBusDataDecoder.MAX_FRAME_SIZE
+                * mCharTimeNanos;
+        long remaining;
+        while (mBusBusy && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (mBusBusy) {
+            Log.w(TAG, "Bus busy line is stuck, ignoring it.");
+            mBusBusy = false;
+        }
+    }
+
+    private void backoff(int attempt) throws InterruptedException {
+        final long slotNanos = BACKOFF_BASE_NANOS << (attempt - 2);
+        TimeUnit.NANOSECONDS.sleep(slotNanos + (long) (mRandom.nextDouble() * slotNanos));
+    }
+
+    private synchronized boolean awaitEcho(long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        long remaining;
+        while (!mEchoReceived && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return mEchoReceived;
+    }
+
+    private void complete(Transmission transmission, DeliveryStatus status) {
+        switch (status) {
+            case DELIVERED:
+                mDeliveredCount.incrementAndGet();
+                break;
+            case FAILED:
+                mFailedCount.incrementAndGet();
+                break;
+            case DROPPED:
+                mDroppedCount.incrementAndGet();
+                break;
+            case SUPERSEDED:
+                mSupersededCount.incrementAndGet();
+                break;
+        }
+        transmission.status.set(status);
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("IBusTransmitter:");
+        StringBuilder queued = new StringBuilder();
+        for (TransmitQueue.Priority priority : TransmitQueue.Priority.values()) {
+            queued.append(queued.length() == 0 ? "" : ", ")
+                    .append(priority).append(": ").append(mQueue.size(priority));
+        }
+        writer.println("  queued: { " + queued + " }");
+        writer.println("  delivered: " + mDeliveredCount.get()
+                + ", retries: " + mRetryCount.get()
+                + ", failed: " + mFailedCount.get()
+                + ", dropped: " + mDroppedCount.get()
+                + ", superseded: " + mSupersededCount.get()
+                + ", write stalls: " + mWriteStallCount.get());
+        synchronized (this) {
+            writer.println("  bus busy: " + mBusBusy
+                    + ", waits for busy bus: " + mBusyWaitCount.get());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.bimdroid.bimservice;
+
+import android.hardware.input.InputManager;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.InputDevice;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+import android.view.ViewConfiguration;
+import java.io.IOException;
+
+/**
+ * Backend that delivers key events to the system.
+ */
+interface KeyInjector {
+
+    /**
+     * Injects key down and up events, with a long press event in between if requested.
+     *
+     * @return future that is completed once the events are handled by the focused window, it
+     *         fails if the events couldn't be injected.
+     * @throws SecurityException if the backend is not permitted to inject events, nothing was
+     *         injected then.
+     */
+    SettableFuture<?> injectKey(int keyCode, boolean longPress);
+
+    /** Human readable name of the backend. */
+    String getName();
+
+    /**
+     * Injects events in-process through {@link InputManager}, requires
+     * {@code android.permission.INJECT_EVENTS} that is granted to platform signed apps.
+     *
+     * <p>
+     *     Like {@code input keyevent}, it waits until the window has handled each event, so the
+     *     caller's thread is blocked for that time.
+     * </p>
+     *
+     * <p>
+     *     An event the system didn't take, e.g. when it timed out or no window has focus, fails
+     *     the returned future. The up event is injected anyway, so the key isn't left pressed.
+     * </p>
+     */
+    class InputManagerInjector implements KeyInjector {
+        private static final String TAG = DebugUtils.TAG + ".KeyInjector";
+
+        // InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH, hidden API.
+        private static final int INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH = 2;
+
+        private final InputManager mInputManager;
+
+        InputManagerInjector(InputManager inputManager) {
+            mInputManager = inputManager;
+        }
+
+        @Override
+        public SettableFuture<?> injectKey(int keyCode, boolean longPress) {
+            // Same sequence of events as 'input keyevent [--longpress]' produces.
+            long now = SystemClock.uptimeMillis();
+            SettableFuture<Void> done = new SettableFuture<>();
+            // A missing permission is thrown from the first event, the caller may use another
+            // backend then. Once the down event is in, failures only fail the future.
+            KeyEvent failed = inject(new KeyEvent(now, now, KeyEvent.ACTION_DOWN, keyCode, 0, 0,
+                    KeyCharacterMap.VIRTUAL_KEYBOARD, 0, 0, InputDevice.SOURCE_KEYBOARD));
+            try {
+                if (longPress) {
+                    KeyEvent event = inject(new KeyEvent(now,
+                            now + ViewConfiguration.getLongPressTimeout(), KeyEvent.ACTION_DOWN,
+                            keyCode, 1, 0, KeyCharacterMap.VIRTUAL_KEYBOARD, 0,
+                            KeyEvent.FLAG_LONG_PRESS, InputDevice.SOURCE_KEYBOARD));
+                    failed = failed != null ? failed : event;
+                }
+                KeyEvent event = inject(new KeyEvent(now, now, KeyEvent.ACTION_UP, keyCode, 0, 0,
+                        KeyCharacterMap.VIRTUAL_KEYBOARD, 0, 0, InputDevice.SOURCE_KEYBOARD));
+                failed = failed != null ? failed : event;
+            } catch (SecurityException e) {
+                Log.w(TAG, "Key injection denied after the down event: " + e.getMessage());
+                done.setException(e);
+                return done;
+            }
+
+            if (failed != null) {
+                Log.w(TAG, "Input event wasn't injected: " + failed);
+                done.setException(new IOException("Input event wasn't injected: " + failed));
+            } else {
+                done.set(null);
+            }
+            return done;
+        }
+
+        /**
+         * @return the event if the system didn't take it, or {@code null}.
+         */
+        private KeyEvent inject(KeyEvent event) {
+            return mInputManager.injectInputEvent(event, INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH)
+                    ? null : event;
+        }
+
+        @Override
+        public String getName() {
+            return "InputManager";
+        }
+    }
+
+    /**
+     * Injects events by running {@code input keyevent} in the privileged shell.
+     */
+    class ShellInjector implements KeyInjector {
+        private final ShellSession mShellSession;
+
+        ShellInjector(ShellSession shellSession) {
+            mShellSession = shellSession;
+        }
+
+        @Override
+        public SettableFuture<?> injectKey(int keyCode, boolean longPress) {
+            return mShellSession.exec(String.format("input keyevent %s%d",
+                    (longPress ? "--longpress " : ""), keyCode));
+        }
+
+        @Override
+        public String getName() {
+            return "Shell";
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.bimdroid.bimservice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with log-linear buckets, the same layout as
+ * HdrHistogram uses: values below {@code 2 * SUB_BUCKET_HALF} have exact buckets, larger values
+ * are split into {@code SUB_BUCKET_HALF} linear buckets per power of two, so any recorded value
+ * is reported with relative error below {@code 1 / SUB_BUCKET_HALF}.
+ *
+ * <p>
+ *     Recording is lock-free and may be done from any thread.
+ * </p>
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    // Longer latencies are recorded as this value, ~19 hours.
+    private static final int MAX_VALUE_BITS = 36;
+    static final long MAX_VALUE_MICROS = (1L << MAX_VALUE_BITS) - 1;
+
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE_MICROS) + 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    void record(long micros) {
+        long value = Math.max(0, Math.min(micros, MAX_VALUE_MICROS));
+        mCounts.incrementAndGet(bucketIndex(value));
+        mTotalCount.incrementAndGet();
+        mTotalMicros.addAndGet(value);
+        long max;
+        while (value > (max = mMaxMicros.get()) && !mMaxMicros.compareAndSet(max, value)) { }
+    }
+
+    long getCount() {
+        return mTotalCount.get();
+    }
+
+    long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    long getMeanMicros() {
+        long count = mTotalCount.get();
+        return count == 0 ? 0 : mTotalMicros.get() / count;
+    }
+
+    /**
+     * Returns the highest value equivalent to the bucket where the given percentile falls, i.e. at
+     * least {@code percentile} percent of recorded values are less or equal to it.
+     */
+    long getPercentileMicros(double percentile) {
+        long count = mTotalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Returns a copy of the histogram. Values recorded while copying may be partially included.
+     */
+    LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy.mCounts.set(i, mCounts.get(i));
+        }
+        copy.mTotalCount.set(mTotalCount.get());
+        copy.mTotalMicros.set(mTotalMicros.get());
+        copy.mMaxMicros.set(mMaxMicros.get());
+        return copy;
+    }
+
+    /**
+     * Clears the histogram. Values recorded while clearing may be partially kept.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Shift that brings the value into [SUB_BUCKET_HALF, SUB_BUCKET_COUNT).
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF
+                + (int) (value >> shift) - SUB_BUCKET_HALF;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count: %d, mean: %s, p50: %s, p90: %s, p99: %s, p99.9: %s, max: %s",
+                getCount(), formatMillis(getMeanMicros()), formatMillis(getPercentileMicros(50)),
+                formatMillis(getPercentileMicros(90)), formatMillis(getPercentileMicros(99)),
+                formatMillis(getPercentileMicros(99.9)), formatMillis(getMaxMicros()));
+    }
+
+    private static String formatMillis(long micros) {
+        return String.format("%.2fms", micros / 1000.0);
+    }
+}
@@ -0,0 +1,72 @@
+package org.bimdroid.bimservice;
+
+import java.io.PrintWriter;
+
+/**
+ * Latencies of a button frame on its way from USB to the action it triggers, and of outgoing
+ * data on its way to the USB device.
+ *
+ * <p>
+ *     All timestamps are {@link android.os.SystemClock#elapsedRealtimeNanos()}.
+ * </p>
+ */
+class LatencyTracker {
+
+    enum Stage {
+        /** From the USB read that delivered the last byte of a frame until it was decoded. */
+        DECODE("read -> decoded"),
+        /** Time the packet waited in the dispatcher queue. */
+        QUEUE("decoded -> dispatched"),
+        /** From dispatching until the action (volume change, key injection, etc.) is done. */
+        HANDLE("dispatched -> action done"),
+        /** The whole way, from the USB read until the action is done. */
+        TOTAL("read -> action done"),
+        /** From enqueuing outgoing data until it's handed over to the USB device. */
+        WRITE("enqueued -> written");
+
+        final String description;
+
+        Stage(String description) {
+            this.description = description;
+        }
+    }
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Stage.values().length];
+
+    LatencyTracker() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    void record(Stage stage, long startNanos, long endNanos) {
+        if (startNanos == 0 || endNanos == 0) {
+            return;  // Stage wasn't stamped, e.g. packet injected bypassing the USB port.
+        }
+        mHistograms[stage.ordinal()].recordNanos(endNanos - startNanos);
+    }
+
+    /**
+     * Returns a snapshot of the stage histogram.
+     */
+    LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()].copy();
+    }
+
+    /**
+     * Clears all stage histograms, e.g. to compare latencies before and after a change.
+     */
+    void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Latency:");
+        for (Stage stage : Stage.values()) {
+            writer.println("  " + stage + " (" + stage.description + "): "
+                    + mHistograms[stage.ordinal()]);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.bimdroid.bimservice;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Shows text on the OBC display of the instrument cluster (IKE).
+ *
+ * <p>
+ *     Text is mapped to the characters the display can show, then text that doesn't fit is either
+ *     split into pages at word boundaries or scrolled as a marquee. Each step is a whole frame on
+ *     a 9600 baud bus, so steps are paced a few hundred milliseconds apart and a new text cancels
+ *     the animation of the previous one.
+ * </p>
+ *
+ * <p>
+ *     All frames of a text are cached together by the text and mode, repeated texts such as
+ *     welcome messages or track titles that scroll again are sent without encoding.
+ * </p>
+ */
+class ObcTextRenderer {
+
+    private static final String TAG = DebugUtils.TAG + ".ObcText";
+    private static final boolean DEBUG = true;
+
+    /** Number of characters sent at once. */
+    static final int DISPLAY_WIDTH = 30;
+
+    private static final long PAGE_INTERVAL_MS = 2000;
+    private static final long MARQUEE_STEP_MS = 400;
+    // The marquee starts moving after the first window was readable for a while.
+    private static final long MARQUEE_START_DELAY_MS = 1500;
+    private static final String MARQUEE_GAP = "   ";
+    // Total size of cached frames, a 30 character frame takes 37 bytes.
+    private static final int FRAME_CACHE_BYTES = 32 * 1024;
+
+    private static final int[] TEXT_COMMAND = { 0x1A, 0x35, 0x00 };
+
+    enum Mode {
+        /** Show text that doesn't fit page by page. */
+        PAGES,
+        /** Scroll text that doesn't fit once through and stop at its beginning. */
+        MARQUEE
+    }
+
+    interface FrameSink {
+        /**
+         * Sends the frame, it's shared with the cache and must not be modified.
+         */
+        void sendFrame(byte[] frame);
+    }
+
+    private final FrameSink mSink;
+    private final Timer mTimer;
+    private final LruCache<String, byte[][]> mFrameCache =
+            new LruCache<String, byte[][]>(FRAME_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, byte[][] frames) {
+            int size = 0;
+            for (byte[] frame : frames) {
+                size += frame.length;
+            }
+            return size;
+        }
+    };
+
+    // Synchronized by 'this'
+    private final BmwIBusService.IBusRawPacket.Builder mBuilder =
+            new BmwIBusService.IBusRawPacket.Builder();
+    private TimerTask mAnimation;
+
+    /**
+     * @param timer runs the animation steps.
+     */
+    ObcTextRenderer(FrameSink sink, Timer timer) {
+        mSink = sink;
+        mTimer = timer;
+    }
+
+    /**
+     * Shows the text, replacing the current one. May be called from any thread.
+     */
+    synchronized void show(String text, Mode mode) {
+        final String displayText = toDisplayCharset(text);
+        if (DEBUG) Log.d(TAG, "show: " + displayText + ", mode: " + mode);
+        if (mAnimation != null) {
+            mAnimation.cancel();
+            mAnimation = null;
+        }
+
+        final byte[][] frames = getFrames(displayText, mode);
+        mSink.sendFrame(frames[0]);
+        if (frames.length == 1) {
+            return;
+        }
+
+        final long interval;
+        final long firstDelay;
+        if (mode == Mode.PAGES) {
+            interval = PAGE_INTERVAL_MS;
+            firstDelay = PAGE_INTERVAL_MS;
+        } else {
+            interval = MARQUEE_STEP_MS;
+            firstDelay = MARQUEE_START_DELAY_MS;
+        }
+        mAnimation = new TimerTask() {
+            private int mStep = 1;
+
+            @Override
+            public void run() {
+                synchronized (ObcTextRenderer.this) {
+                    if (mAnimation != this) {
+                        return;  // Replaced by a newer text.
+                    }
+                    mSink.sendFrame(frames[mStep++]);
+                    if (mStep == frames.length) {
+                        cancel();
+                        mAnimation = null;
+                    }
+                }
+            }
+        };
+        mTimer.schedule(mAnimation, firstDelay, interval);
+    }
+
+    /**
+     * Stops the animation of the current text, if any.
+     */
+    synchronized void stop() {
+        if (mAnimation != null) {
+            mAnimation.cancel();
+            mAnimation = null;
+        }
+    }
+
+    /**
+     * Returns the frames of all steps of the text, from the cache if it was shown before.
+     */
+    private byte[][] getFrames(String displayText, Mode mode) {
+        final String key = mode + ":" + displayText;
+        byte[][] frames = mFrameCache.get(key);
+        if (frames != null) {
+            return frames;
+        }
+
+        final List<String> windows;
+        if (displayText.length() <= DISPLAY_WIDTH) {
+            windows = Collections.singletonList(displayText);
+        } else if (mode == Mode.PAGES) {
+            windows = paginate(displayText, DISPLAY_WIDTH);
+        } else {
+            windows = marquee(displayText, DISPLAY_WIDTH);
+        }
+        frames = new byte[windows.size()][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = mBuilder.reset(BmwIBusService.OBC_TEXT_SOURCE, BmwIBusService.IKE)
+                    .append(TEXT_COMMAND)
+                    .appendAscii(windows.get(i))
+                    .buildFrame();
+        }
+        mFrameCache.put(key, frames);
+        return frames;
+    }
+
+    /**
+     * Maps the text to characters the display can show: accents are dropped, letters are
+     * upper-cased, control characters become spaces and anything else becomes '?'.
+     */
+    static String toDisplayCharset(String text) {
+        final String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .toUpperCase(Locale.US);
+        final StringBuilder sb = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;  // Accent of the preceding letter.
+            }
+            if (c >= 0x20 && c <= 0x7E) {
+                sb.append(c);
+            } else if (Character.isWhitespace(c) || Character.isISOControl(c)) {
+                sb.append(' ');
+            } else {
+                sb.append('?');
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Splits the text into pages of at most {@code width} characters at spaces, words that are
+     * longer than a page are split.
+     */
+    static List<String> paginate(String text, int width) {
+        final List<String> pages = new ArrayList<>();
+        final StringBuilder page = new StringBuilder(width);
+        for (String word : text.split(" +")) {
+            while (word.length() > width) {
+                if (page.length() > 0) {
+                    pages.add(page.toString());
+                    page.setLength(0);
+                }
+                pages.add(word.substring(0, width));
+                word = word.substring(width);
+            }
+            if (page.length() > 0 && page.length() + 1 + word.length() > width) {
+                pages.add(page.toString());
+                page.setLength(0);
+            }
+            if (page.length() > 0) {
+                page.append(' ');
+            }
+            page.append(word);
+        }
+        if (page.length() > 0) {
+            pages.add(page.toString());
+        }
+        return pages;
+    }
+
+    /**
+     * Returns windows of the text moving by one character, ending with the beginning of the text.
+     */
+    static List<String> marquee(String text, int width) {
+        final String loop = text + MARQUEE_GAP + text.substring(0, width);
+        final int stepCount = text.length() + MARQUEE_GAP.length() + 1;
+        final List<String> windows = new ArrayList<>(stepCount);
+        for (int i = 0; i < stepCount; i++) {
+            windows.add(loop.substring(i, i + width));
+        }
+        return windows;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("ObcTextRenderer:");
+        writer.println("  frame cache: " + mFrameCache.size() + "/" + mFrameCache.maxSize()
+                + " bytes, hits: " + mFrameCache.hitCount()
+                + ", misses: " + mFrameCache.missCount());
+    }
+}
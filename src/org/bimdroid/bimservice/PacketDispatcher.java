@@ -0,0 +1,150 @@
+package org.bimdroid.bimservice;
+
+import android.util.Log;
+
+import org.bimdroid.bimservice.BmwIBusService.IBusPacket;
+import org.bimdroid.bimservice.BmwIBusService.IBusPacketListener;
+import org.bimdroid.bimservice.BmwIBusService.PacketBatch;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decouples packet handling from the USB read thread. Packets are copied into a bounded queue
+ * and handled on a dedicated thread, so slow handlers (shell commands, starting activities, etc.)
+ * never stop us from reading the port.
+ */
+class PacketDispatcher implements IBusPacketListener {
+
+    private static final String TAG = DebugUtils.TAG + ".Dispatcher";
+
+    /** What to do with a new packet when the queue is full. */
+    enum OverflowPolicy {
+        /** Drop the oldest queued packet to make room for the new one. */
+        DROP_OLDEST,
+        /** Drop the new packet. */
+        DROP_NEWEST,
+        /** Block the caller until there is room in the queue. */
+        BLOCK
+    }
+
+    interface PacketHandler {
+        /**
+         * Called on the dispatcher thread, packet is recycled once this method returns.
+         */
+        void onIBusPacket(IBusPacket packet);
+    }
+
+    private final BlockingQueue<IBusPacket> mQueue;
+    private final int mCapacity;
+    private final OverflowPolicy mOverflowPolicy;
+    private final PacketHandler mHandler;
+    private final Thread mThread;
+
+    private final AtomicLong mEnqueuedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mDispatchedCount = new AtomicLong();
+    private volatile int mMaxDepth;
+
+    PacketDispatcher(int capacity, OverflowPolicy overflowPolicy, PacketHandler handler) {
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        mCapacity = capacity;
+        mOverflowPolicy = overflowPolicy;
+        mHandler = handler;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        }, PacketDispatcher.class.getSimpleName());
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    void quit() {
+        mThread.interrupt();
+    }
+
+    @Override
+    public void onIBusPackets(PacketBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            enqueue(IBusPacket.obtain(batch.get(i)));
+        }
+    }
+
+    private void enqueue(IBusPacket packet) {
+        boolean queued;
+        switch (mOverflowPolicy) {
+            case DROP_OLDEST:
+                while (!(queued = mQueue.offer(packet))) {
+                    IBusPacket oldest = mQueue.poll();
+                    if (oldest != null) {
+                        Log.w(TAG, "Queue is full, dropping: " + oldest);
+                        mDroppedCount.incrementAndGet();
+                        oldest.recycle();
+                    }
+                }
+                break;
+            case BLOCK:
+                try {
+                    mQueue.put(packet);
+                    queued = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    queued = false;
+                }
+                break;
+            default:
+                queued = mQueue.offer(packet);
+        }
+
+        if (!queued) {
+            Log.w(TAG, "Queue is full, dropping: " + packet);
+            mDroppedCount.incrementAndGet();
+            packet.recycle();
+            return;
+        }
+
+        mEnqueuedCount.incrementAndGet();
+        int depth = mQueue.size();
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+    }
+
+    private void dispatchLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                IBusPacket packet = mQueue.take();
+                try {
+                    mHandler.onIBusPacket(packet);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to handle packet: " + packet, e);
+                } finally {
+                    packet.recycle();
+                }
+                mDispatchedCount.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Dispatcher interrupted.");
+        } finally {
+            IBusPacket packet;
+            while ((packet = mQueue.poll()) != null) {
+                packet.recycle();
+            }
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("PacketDispatcher:");
+        writer.println("  policy: " + mOverflowPolicy + ", capacity: " + mCapacity);
+        writer.println("  depth: " + mQueue.size() + ", max depth: " + mMaxDepth);
+        writer.println("  enqueued: " + mEnqueuedCount.get()
+                + ", dispatched: " + mDispatchedCount.get()
+                + ", dropped: " + mDroppedCount.get());
+    }
+}
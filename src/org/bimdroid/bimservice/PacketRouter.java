@@ -0,0 +1,201 @@
+package org.bimdroid.bimservice;
+
+import android.util.Log;
+
+import com.hoho.android.usbserial.util.HexDump;
+
+import org.bimdroid.bimservice.BmwIBusService.IBusPacket;
+import org.bimdroid.bimservice.BmwIBusService.IBusPacketView;
+import org.bimdroid.bimservice.PacketDispatcher.PacketHandler;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes packets to handlers registered for (source, destination, first payload bytes).
+ *
+ * <p>
+ *     Registered routes are compiled into a trie with one 256-entry level per key byte, so the
+ *     lookup costs at most {@code 2 + MAX_PREFIX_LENGTH} array accesses regardless of the number
+ *     of routes. The most specific route wins, i.e. a route with a longer payload prefix takes
+ *     precedence over a shorter one for the same source and destination.
+ * </p>
+ *
+ * <p>
+ *     Routes may be registered and unregistered from any thread, each change builds a new trie
+ *     that is published atomically, so lookups never take a lock.
+ * </p>
+ */
+class PacketRouter implements PacketHandler {
+
+    private static final String TAG = DebugUtils.TAG + ".Router";
+
+    static final int MAX_PREFIX_LENGTH = 2;
+
+    static final class Route {
+        final String name;
+        final byte source;
+        final byte destination;
+        final byte[] payloadPrefix;
+        final PacketHandler handler;
+
+        private final AtomicLong mHitCount = new AtomicLong();
+
+        private Route(String name, byte source, byte destination, byte[] payloadPrefix,
+                PacketHandler handler) {
+            this.name = name;
+            this.source = source;
+            this.destination = destination;
+            this.payloadPrefix = payloadPrefix;
+            this.handler = handler;
+        }
+
+        long getHitCount() {
+            return mHitCount.get();
+        }
+
+        private boolean hasSameKey(Route other) {
+            return source == other.source && destination == other.destination
+                    && Arrays.equals(payloadPrefix, other.payloadPrefix);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s [0x%02x -> 0x%02x %s]", name, source & 0xff,
+                    destination & 0xff,
+                    payloadPrefix.length == 0 ? "*" : HexDump.toHexString(payloadPrefix));
+        }
+    }
+
+    private static final class Node {
+        Route route;
+        Node[] children;
+
+        Node child(byte b) {
+            return children == null ? null : children[b & 0xff];
+        }
+
+        Node getOrCreateChild(byte b) {
+            if (children == null) {
+                children = new Node[256];
+            }
+            Node child = children[b & 0xff];
+            if (child == null) {
+                child = new Node();
+                children[b & 0xff] = child;
+            }
+            return child;
+        }
+    }
+
+    // Synchronized by 'this'
+    private final List<Route> mRoutes = new ArrayList<>();
+
+    private volatile Node mRoot = new Node();
+    private final AtomicLong mUnroutedCount = new AtomicLong();
+
+    /**
+     * Registers a handler for packets from the source to the destination which payload starts
+     * with the given prefix.
+     *
+     * @param payloadPrefix up to {@link #MAX_PREFIX_LENGTH} bytes, empty prefix matches any
+     *            payload.
+     * @throws IllegalArgumentException if the prefix is too long or there is already a route
+     *            with the same key.
+     */
+    synchronized Route register(String name, byte source, byte destination, byte[] payloadPrefix,
+            PacketHandler handler) {
+        if (payloadPrefix.length > MAX_PREFIX_LENGTH) {
+            throw new IllegalArgumentException("Payload prefix is too long: "
+                    + payloadPrefix.length);
+        }
+        Route route = new Route(name, source, destination, payloadPrefix.clone(), handler);
+        for (Route r : mRoutes) {
+            if (r.hasSameKey(route)) {
+                throw new IllegalArgumentException("Route " + route + " conflicts with " + r);
+            }
+        }
+        mRoutes.add(route);
+        compile();
+        return route;
+    }
+
+    synchronized void unregister(Route route) {
+        if (mRoutes.remove(route)) {
+            compile();
+        }
+    }
+
+    private void compile() {
+        Node root = new Node();
+        for (Route route : mRoutes) {
+            Node node = root.getOrCreateChild(route.source).getOrCreateChild(route.destination);
+            for (byte b : route.payloadPrefix) {
+                node = node.getOrCreateChild(b);
+            }
+            node.route = route;
+        }
+        mRoot = root;
+    }
+
+    Route lookup(IBusPacketView view) {
+        Node node = lookupAddresses(view.getSource(), view.getDestination());
+        if (node == null) {
+            return null;
+        }
+        Route route = node.route;
+        int depth = Math.min(view.getPayloadLength(), MAX_PREFIX_LENGTH);
+        for (int i = 0; i < depth && (node = node.child(view.getPayload(i))) != null; i++) {
+            if (node.route != null) {
+                route = node.route;
+            }
+        }
+        return route;
+    }
+
+    Route lookup(IBusPacket packet) {
+        Node node = lookupAddresses(packet.source, packet.destination);
+        if (node == null) {
+            return null;
+        }
+        Route route = node.route;
+        int depth = Math.min(packet.length, MAX_PREFIX_LENGTH);
+        for (int i = 0; i < depth && (node = node.child(packet.payload[i])) != null; i++) {
+            if (node.route != null) {
+                route = node.route;
+            }
+        }
+        return route;
+    }
+
+    private Node lookupAddresses(byte source, byte destination) {
+        Node node = mRoot.child(source);
+        return node == null ? null : node.child(destination);
+    }
+
+    @Override
+    public void onIBusPacket(IBusPacket packet) {
+        Route route = lookup(packet);
+        if (route == null) {
+            Log.w(TAG, "No route for packet: " + packet);
+            mUnroutedCount.incrementAndGet();
+            return;
+        }
+        route.mHitCount.incrementAndGet();
+        route.handler.onIBusPacket(packet);
+    }
+
+    void dump(PrintWriter writer) {
+        List<Route> routes;
+        synchronized (this) {
+            routes = new ArrayList<>(mRoutes);
+        }
+        writer.println("PacketRouter, unrouted packets: " + mUnroutedCount.get());
+        for (Route route : routes) {
+            writer.println("  " + route + ", hits: " + route.getHitCount());
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.bimdroid.bimservice;
+
+import android.util.Log;
+
+import org.bimdroid.bimservice.BmwIBusService.IBusPacket;
+import org.bimdroid.bimservice.BmwIBusService.IBusPacketView;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Matches received frames to pending queries.
+ *
+ * <p>
+ *     Pending queries are indexed by the (source, destination, command) of the expected response,
+ *     so a received frame costs a single hash lookup no matter how many queries are in flight.
+ *     Queries waiting for the same key are answered in the order they were registered.
+ * </p>
+ */
+class ResponseCorrelator {
+
+    private static final String TAG = DebugUtils.TAG + ".Correlator";
+    private static final boolean DEBUG = true;
+
+    /**
+     * Describes the expected response. Override {@link #matches(IBusPacketView)} to check more
+     * than the source, destination and command.
+     */
+    static class ResponseMatcher {
+        final byte source;
+        final byte destination;
+        final byte command;
+
+        ResponseMatcher(byte source, byte destination, byte command) {
+            this.source = source;
+            this.destination = destination;
+            this.command = command;
+        }
+
+        /**
+         * Expects a response from the destination of the request back to its source.
+         */
+        static ResponseMatcher replyTo(BmwIBusService.IBusRawPacket request, byte command) {
+            return new ResponseMatcher(request.destination, request.source, command);
+        }
+
+        /**
+         * Called only for frames with the expected source, destination and command.
+         */
+        boolean matches(IBusPacketView response) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "ResponseMatcher { source: 0x" + Integer.toHexString(0xff & source)
+                    + ", destination: 0x" + Integer.toHexString(0xff & destination)
+                    + ", command: 0x" + Integer.toHexString(0xff & command) + " }";
+        }
+    }
+
+    private final class Query extends TimerTask {
+        final int key;
+        final ResponseMatcher matcher;
+        final SettableFuture<IBusPacket> response = new SettableFuture<>();
+
+        Query(int key, ResponseMatcher matcher) {
+            this.key = key;
+            this.matcher = matcher;
+        }
+
+        @Override
+        public void run() {
+            if (remove(this) && response.setException(
+                    new TimeoutException("No response: " + matcher))) {
+                mTimedOutCount.incrementAndGet();
+            }
+        }
+    }
+
+    private final Timer mTimer;
+
+    // Synchronized by 'this'
+    private final Map<Integer, ArrayDeque<Query>> mPending = new HashMap<>();
+    // Number of pending queries, read without the lock to skip frames when there are none.
+    private volatile int mPendingCount;
+
+    private final AtomicLong mAnsweredCount = new AtomicLong();
+    private final AtomicLong mTimedOutCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+
+    /**
+     * @param timer used to expire queries, its tasks must be short.
+     */
+    ResponseCorrelator(Timer timer) {
+        mTimer = timer;
+    }
+
+    private static int key(byte source, byte destination, byte command) {
+        return (source & 0xff) << 16 | (destination & 0xff) << 8 | (command & 0xff);
+    }
+
+    /**
+     * Registers a query, must be called before the request is sent, so a fast response isn't
+     * missed.
+     *
+     * @return future that is completed with a copy of the response, the caller may recycle it.
+     *         The future fails with {@link TimeoutException} if there was no response in time.
+     */
+    Future<IBusPacket> await(ResponseMatcher matcher, long timeoutMs) {
+        Query query = new Query(key(matcher.source, matcher.destination, matcher.command),
+                matcher);
+        synchronized (this) {
+            ArrayDeque<Query> queries = mPending.get(query.key);
+            if (queries == null) {
+                queries = new ArrayDeque<>();
+                mPending.put(query.key, queries);
+            }
+            queries.addLast(query);
+            mPendingCount++;
+        }
+        mTimer.schedule(query, timeoutMs);
+        return query.response;
+    }
+
+    /**
+     * Called for every frame decoded from the bus.
+     *
+     * @return {@code true} if the frame answered a query.
+     */
+    boolean onFrame(IBusPacketView frame) {
+        if (mPendingCount == 0 || frame.getPayloadLength() == 0) {
+            return false;
+        }
+
+        Query answered = null;
+        synchronized (this) {
+            final int key = key(frame.getSource(), frame.getDestination(), frame.getPayload(0));
+            ArrayDeque<Query> queries = mPending.get(key);
+            if (queries == null) {
+                return false;
+            }
+            for (Iterator<Query> it = queries.iterator(); it.hasNext(); ) {
+                Query query = it.next();
+                if (query.response.isDone()) {
+                    // Cancelled by the caller.
+                    it.remove();
+                    mPendingCount--;
+                } else if (query.matcher.matches(frame)) {
+                    it.remove();
+                    mPendingCount--;
+                    answered = query;
+                    break;
+                }
+            }
+            if (queries.isEmpty()) {
+                mPending.remove(key);
+            }
+        }
+        if (answered == null) {
+            return false;
+        }
+
+        answered.cancel();
+        IBusPacket response = frame.retain();
+        if (answered.response.set(response)) {
+            if (DEBUG) Log.d(TAG, "Answered " + answered.matcher + " with " + frame);
+            mAnsweredCount.incrementAndGet();
+        } else {
+            response.recycle();
+        }
+        return true;
+    }
+
+    /**
+     * Fails the query that returned the future, e.g. because the request couldn't be sent. Does
+     * nothing if the query is already completed.
+     */
+    void fail(Future<IBusPacket> response, Exception error) {
+        Query failed = null;
+        synchronized (this) {
+            for (ArrayDeque<Query> queries : mPending.values()) {
+                for (Query query : queries) {
+                    if (query.response == response) {
+                        failed = query;
+                        break;
+                    }
+                }
+                if (failed != null) {
+                    break;
+                }
+            }
+            if (failed == null || !remove(failed)) {
+                return;
+            }
+        }
+        failed.cancel();
+        if (failed.response.setException(error)) {
+            mFailedCount.incrementAndGet();
+        }
+    }
+
+    private synchronized boolean remove(Query query) {
+        ArrayDeque<Query> queries = mPending.get(query.key);
+        if (queries == null || !queries.remove(query)) {
+            return false;
+        }
+        mPendingCount--;
+        if (queries.isEmpty()) {
+            mPending.remove(query.key);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels all pending queries.
+     */
+    void cancelAll() {
+        ArrayDeque<Query> cancelled = new ArrayDeque<>();
+        synchronized (this) {
+            for (ArrayDeque<Query> queries : mPending.values()) {
+                cancelled.addAll(queries);
+            }
+            mPending.clear();
+            mPendingCount = 0;
+        }
+        for (Query query : cancelled) {
+            query.cancel();
+            query.response.cancel(false);
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("ResponseCorrelator:");
+        writer.println("  pending: " + mPendingCount
+                + ", answered: " + mAnsweredCount.get()
+                + ", timed out: " + mTimedOutCount.get()
+                + ", failed: " + mFailedCount.get());
+    }
+}
@@ -0,0 +1,137 @@
+package org.bimdroid.bimservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link Future} that is completed explicitly by its producer. Only the first completion takes
+ * effect.
+ */
+class SettableFuture<V> implements Future<V> {
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    // Synchronized by 'this'
+    private boolean mCompleted;
+    private boolean mCancelled;
+    private V mValue;
+    private Throwable mError;
+    private List<Runnable> mListeners;
+
+    /**
+     * @return {@code true} if this call completed the future.
+     */
+    boolean set(V value) {
+        synchronized (this) {
+            if (mCompleted) {
+                return false;
+            }
+            mCompleted = true;
+            mValue = value;
+        }
+        mDone.countDown();
+        runListeners();
+        return true;
+    }
+
+    /**
+     * @return {@code true} if this call completed the future.
+     */
+    boolean setException(Throwable error) {
+        synchronized (this) {
+            if (mCompleted) {
+                return false;
+            }
+            mCompleted = true;
+            mError = error;
+        }
+        mDone.countDown();
+        runListeners();
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mCompleted) {
+                return false;
+            }
+            mCompleted = true;
+            mCancelled = true;
+        }
+        mDone.countDown();
+        runListeners();
+        return true;
+    }
+
+    /**
+     * Runs the listener on the thread that completes the future, or right away if it's already
+     * done. Listeners must be short.
+     */
+    void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!mCompleted) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<>();
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private void runListeners() {
+        final List<Runnable> listeners;
+        synchronized (this) {
+            listeners = mListeners;
+            mListeners = null;
+        }
+        if (listeners != null) {
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mCompleted;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException("Timed out after " + unit.toMillis(timeout) + "ms");
+        }
+        return getResult();
+    }
+
+    private synchronized V getResult() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mValue;
+    }
+}
@@ -39,6 +39,7 @@ public class SettingsActivity extends Activity {
 
     private Button mRefreshBtn;
     private Spinner mPortSpinner;
+    private Spinner mBusBusySpinner;
     private ProgressBar mProgressBar;
     private TextView mProgressBarTitle;
     private TextView mIBusTextMessage;
@@ -69,6 +70,7 @@ public class SettingsActivity extends Activity {
         setContentView(R.layout.activity_settings);
         mRefreshBtn = (Button) findViewById(R.id.refresh_button);
         mPortSpinner = (Spinner) findViewById(R.id.port_spinner);
+        mBusBusySpinner = (Spinner) findViewById(R.id.bus_busy_spinner);
         mProgressBar = (ProgressBar) findViewById(R.id.progress_bar);
         mProgressBarTitle = (TextView) findViewById(R.id.progress_bar_title);
         mIBusTextMessage = (TextView) findViewById(R.id.ibus_message);
@@ -86,11 +88,11 @@ public class SettingsActivity extends Activity {
 
             @Override
             public void onClick(View v) {
-                sendRawMessageToCar("3f 05 00 0c 34 01");  // Door lock
+                sendBodyCommandToCar("3f 05 00 0c 34 01");  // Door lock
                 new Handler().postDelayed(new Runnable() {
                     @Override
                     public void run() {
-                        sendRawMessageToCar("3f 05 00 0c 03 01");  // Door unlock
+                        sendBodyCommandToCar("3f 05 00 0c 03 01");  // Door unlock
                     }
                 }, 5000);
             }
@@ -100,11 +102,11 @@ public class SettingsActivity extends Activity {
 
             @Override
             public void onClick(View v) {
-               sendRawMessageToCar("3f 05 00 0c 52 01");  // Driver's window open
+               sendBodyCommandToCar("3f 05 00 0c 52 01");  // Driver's window open
                 new Handler().postDelayed(new Runnable() {
                     @Override
                     public void run() {
-                        sendRawMessageToCar("3f 05 00 0c 53 01");  // Driver's window close
+                        sendBodyCommandToCar("3f 05 00 0c 53 01");  // Driver's window close
                     }
                 }, 15000);
             }
@@ -127,6 +129,17 @@ public class SettingsActivity extends Activity {
             }
         });
 
+        updateBusBusySpinner();
+        mBusBusySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                onBusBusyPolaritySelected(ConfigStorage.BusBusyPolarity.values()[position]);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) { }
+        });
+
         mRefreshBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -139,6 +152,17 @@ public class SettingsActivity extends Activity {
     }
 
     private void sendRawMessageToCar(String text) {
+        sendRawMessageToCar(text, TransmitQueue.Priority.NORMAL);
+    }
+
+    /**
+     * Door lock and window commands go ahead of queued informational frames.
+     */
+    private void sendBodyCommandToCar(String text) {
+        sendRawMessageToCar(text, TransmitQueue.Priority.HIGH);
+    }
+
+    private void sendRawMessageToCar(String text, TransmitQueue.Priority priority) {
         BmwIBusService.IBusRawPacket packet;
         try {
             packet = BmwIBusService.IBusRawPacket.createFromString(text);
@@ -152,7 +176,7 @@ public class SettingsActivity extends Activity {
             Toast.makeText(SettingsActivity.this, "Sending message: "
                     + HexDump.toHexString(packet.toByteArray()),
                     Toast.LENGTH_LONG).show();
-            mService.sendIBusMessage(packet);
+            mService.sendIBusMessage(packet, priority, false);
         }
     }
 
@@ -191,7 +215,8 @@ public class SettingsActivity extends Activity {
         }
 
         ConfigStorage.writeDefaultPort(this, new ConfigStorage.SerialPortIdentifier(
-            device.getVendorId(), device.getProductId(), device.getSerialNumber()));
+            device.getVendorId(), device.getProductId(), device.getSerialNumber(),
+            port.mPort.getPortNumber()));
 
         for (int i = 0; i < mPortAdapter.getCount(); i++) {
             SerialPortItem item = mPortAdapter.getItem(i);
@@ -206,9 +231,30 @@ public class SettingsActivity extends Activity {
             mService.onUsbSerialPortChanged(port.mPort);
         }
 
+        updateBusBusySpinner();
+
         Toast.makeText(this, "New serial port selected: " + port, Toast.LENGTH_LONG).show();
     }
 
+    private void updateBusBusySpinner() {
+        ConfigStorage.SerialPortIdentifier port = ConfigStorage.readDefaultPort(this);
+        mBusBusySpinner.setEnabled(port != null);
+        if (port != null) {
+            mBusBusySpinner.setSelection(ConfigStorage.readBusBusyPolarity(this, port).ordinal());
+        }
+    }
+
+    private void onBusBusyPolaritySelected(ConfigStorage.BusBusyPolarity polarity) {
+        ConfigStorage.SerialPortIdentifier port = ConfigStorage.readDefaultPort(this);
+        if (port == null || ConfigStorage.readBusBusyPolarity(this, port) == polarity) {
+            return;
+        }
+        ConfigStorage.writeBusBusyPolarity(this, port, polarity);
+        if (mServiceBound && mService != null) {
+            mService.onBusBusyPolarityChanged();
+        }
+    }
+
     private void refreshDeviceList() {
         showProgressBar();
 
@@ -246,7 +292,8 @@ public class SettingsActivity extends Activity {
                             && currentPort.getVendorId() == device.getVendorId()
                             && currentPort.getProductId() == device.getProductId()
                             && Objects.equals(currentPort.getSerialNumber(),
-                                              device.getSerialNumber());
+                                              device.getSerialNumber())
+                            && currentPort.getPortNumber() == port.getPortNumber();
                     items.add(new SerialPortItem(port, isPortSelected));
                 }
                 mPortAdapter.addAll(items);
@@ -0,0 +1,274 @@
+package org.bimdroid.bimservice;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Long-lived privileged shell. Keeps a single {@code su} process open and pipelines commands
+ * over its stdin, so we don't pay for spawning a new process on every command.
+ *
+ * <p>
+ *     Every command is followed by a marker echo that carries its exit code, the reader thread
+ *     collects output up to the marker and completes the command's future. The timeout of a
+ *     command starts when the shell gets to it, not when it is queued behind others. If a command
+ *     doesn't finish in time or the shell dies, the shell is killed, all pending commands fail
+ *     and a new shell is spawned with the next command.
+ * </p>
+ */
+class ShellSession {
+
+    private static final String TAG = DebugUtils.TAG + ".Shell";
+
+    private static final String END_MARKER = "__BIMDROID_END_OF_COMMAND__";
+
+    static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    /** Output and exit code of a finished command. */
+    static class Result {
+        final int exitCode;
+        final String output;  // stdout and stderr combined.
+
+        Result(int exitCode, String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        @Override
+        public String toString() {
+            return "Result { exitCode: " + exitCode + ", output: " + output + " }";
+        }
+    }
+
+    private static class Command {
+        final String command;
+        final long timeoutMs;
+        final SettableFuture<Result> result = new SettableFuture<>();
+        // Synchronized by the session, set once the shell starts running the command.
+        ScheduledFuture<?> timeout;
+
+        Command(String command, long timeoutMs) {
+            this.command = command;
+            this.timeoutMs = timeoutMs;
+        }
+    }
+
+    private final String mShell;
+    private final ScheduledExecutorService mTimeoutExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // Synchronized by 'this'
+    private Process mProcess;
+    private OutputStream mStdin;
+    private final Deque<Command> mPending = new ArrayDeque<>();
+    private int mSpawnCount;
+    private boolean mClosed;
+
+    ShellSession() {
+        this("su");
+    }
+
+    /**
+     * @param shell executable of the shell, {@code su} by default.
+     */
+    ShellSession(String shell) {
+        mShell = shell;
+    }
+
+    SettableFuture<Result> exec(String command) {
+        return exec(command, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Runs the command in the shell.
+     *
+     * @return future that is completed when the command finishes, fails with
+     *         {@link TimeoutException} if it runs longer than {@code timeoutMs} or with
+     *         {@link IOException} if the shell couldn't be started or died.
+     */
+    SettableFuture<Result> exec(final String command, long timeoutMs) {
+        final Command cmd = new Command(command, timeoutMs);
+        synchronized (this) {
+            if (mClosed) {
+                cmd.result.setException(new IOException("Shell session is closed"));
+                return cmd.result;
+            }
+            try {
+                ensureShellLocked();
+                mPending.addLast(cmd);
+                String line = command + "\n__rc=$?; echo; echo " + END_MARKER + " $__rc\n";
+                mStdin.write(line.getBytes(StandardCharsets.UTF_8));
+                mStdin.flush();
+                if (mPending.peekFirst() == cmd) {
+                    startTimeoutLocked(cmd);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "exec, command: " + command + ", error: " + e.getMessage(), e);
+                killShellLocked(e);
+                cmd.result.setException(e);
+            }
+        }
+        return cmd.result;
+    }
+
+    /**
+     * Fails all pending commands and stops the shell.
+     */
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            killShellLocked(new IOException("Shell session is closed"));
+        }
+        mTimeoutExecutor.shutdownNow();
+    }
+
+    synchronized int getSpawnCount() {
+        return mSpawnCount;
+    }
+
+    private void ensureShellLocked() throws IOException {
+        if (mProcess != null) {
+            return;
+        }
+
+        Log.i(TAG, "Starting shell.");
+        final Process process = new ProcessBuilder(mShell).redirectErrorStream(true).start();
+        mProcess = process;
+        mStdin = process.getOutputStream();
+        mSpawnCount++;
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readOutput(process);
+            }
+        }, ShellSession.class.getSimpleName() + "Reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readOutput(Process process) {
+        StringBuilder output = new StringBuilder();
+        boolean lineStarted = false;
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(END_MARKER)) {
+                    onCommandFinished(process, parseExitCode(line), output.toString());
+                    output.setLength(0);
+                    lineStarted = false;
+                    continue;
+                }
+                // The echo before the marker always terminates the last line of output, so the
+                // line separator is added only between lines.
+                if (lineStarted) {
+                    output.append('\n');
+                }
+                output.append(line);
+                lineStarted = true;
+            }
+            onShellDied(process, new IOException("Shell exited"));
+        } catch (IOException e) {
+            onShellDied(process, e);
+        }
+    }
+
+    private static int parseExitCode(String markerLine) {
+        try {
+            return Integer.parseInt(markerLine.substring(END_MARKER.length()).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void onCommandFinished(Process process, int exitCode, String output) {
+        Command cmd;
+        synchronized (this) {
+            if (process != mProcess) {
+                return;  // Commands of a killed shell are already failed.
+            }
+            cmd = mPending.pollFirst();
+            if (cmd != null) {
+                cmd.timeout.cancel(false);
+            }
+            final Command next = mPending.peekFirst();
+            if (next != null) {
+                startTimeoutLocked(next);
+            }
+        }
+        if (cmd == null) {
+            Log.w(TAG, "Unexpected end of command, exitCode: " + exitCode);
+            return;
+        }
+        if (exitCode != 0) {
+            Log.w(TAG, "Command: " + cmd.command + " exited with: " + exitCode
+                    + ", output: " + output);
+        }
+        cmd.result.set(new Result(exitCode, output));
+    }
+
+    private void onShellDied(Process process, IOException error) {
+        synchronized (this) {
+            if (process == mProcess) {
+                Log.w(TAG, "Shell died: " + error.getMessage());
+                killShellLocked(error);
+            }
+        }
+    }
+
+    private void onTimeout(Command cmd, Process process) {
+        if (cmd.result.isDone()) {
+            return;
+        }
+        synchronized (this) {
+            Log.w(TAG, "Command timed out: " + cmd.command);
+            cmd.result.setException(new TimeoutException("Command timed out: " + cmd.command));
+            // The shell is blocked by this command, next command will spawn a new one.
+            if (process == mProcess) {
+                killShellLocked(new IOException("Shell killed after timeout of: " + cmd.command));
+            }
+        }
+    }
+
+    /**
+     * Starts the timeout of the command, called when it is the first pending command of the
+     * running shell.
+     */
+    private void startTimeoutLocked(final Command cmd) {
+        final Process process = mProcess;
+        cmd.timeout = mTimeoutExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(cmd, process);
+            }
+        }, cmd.timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void killShellLocked(IOException reason) {
+        Command cmd;
+        while ((cmd = mPending.pollFirst()) != null) {
+            if (cmd.timeout != null) {
+                cmd.timeout.cancel(false);
+            }
+            cmd.result.setException(reason);
+        }
+        if (mProcess != null) {
+            mProcess.destroy();
+            mProcess = null;
+            mStdin = null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.bimdroid.bimservice;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Queue of outgoing frames with priority classes and supersedable slots.
+ *
+ * <p>
+ *     Frames of a higher class always go first, frames of the same class keep their order. A frame
+ *     queued with {@code supersede} takes the slot keyed by its (destination, command byte): if
+ *     there is a queued frame for the same slot, it is replaced in place by the newer one, so a
+ *     burst of e.g. display updates costs a single frame on the bus and the latest one wins.
+ * </p>
+ */
+class TransmitQueue<T extends TransmitQueue.Entry> {
+
+    enum Priority {
+        /** Frames that change the state of the car, e.g. locks and windows. */
+        HIGH,
+        NORMAL,
+        /** Informational frames, e.g. text on the display. */
+        LOW
+    }
+
+    /** Frame waiting in the queue. */
+    static class Entry {
+        byte[] frame;
+        Priority priority;
+        // Slot key, or NO_KEY if the entry can't be superseded.
+        int key = NO_KEY;
+
+        Entry(byte[] frame, Priority priority) {
+            this.frame = frame;
+            this.priority = priority;
+        }
+    }
+
+    private static final int NO_KEY = -1;
+
+    private final int mCapacity;
+    private final ArrayDeque<T>[] mQueues;
+    private final Map<Integer, T> mSlots = new HashMap<>();
+    private int mSize;
+
+    @SuppressWarnings("unchecked")
+    TransmitQueue(int capacity) {
+        mCapacity = capacity;
+        mQueues = new ArrayDeque[Priority.values().length];
+        for (int i = 0; i < mQueues.length; i++) {
+            mQueues[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns the slot key of the frame: destination and the first payload byte.
+     */
+    static int slotKey(byte[] frame) {
+        // Source, length, destination, command.
+        return frame.length > 4 ? (frame[2] & 0xff) << 8 | (frame[3] & 0xff) : NO_KEY;
+    }
+
+    /**
+     * Queues the entry.
+     *
+     * @param supersede replace a queued entry for the same slot, if any.
+     * @return the entry that was superseded by this one, the entry itself if it was rejected
+     *         because the queue is full, or {@code null} if it was added.
+     */
+    synchronized T offer(T entry, boolean supersede) {
+        int key = supersede ? slotKey(entry.frame) : NO_KEY;
+        if (key != NO_KEY) {
+            T queued = mSlots.get(key);
+            if (queued != null) {
+                replace(queued, entry);
+                return queued;
+            }
+        }
+        if (mSize == mCapacity) {
+            return entry;
+        }
+
+        entry.key = key;
+        if (key != NO_KEY) {
+            mSlots.put(key, entry);
+        }
+        mQueues[entry.priority.ordinal()].addLast(entry);
+        mSize++;
+        notifyAll();
+        return null;
+    }
+
+    private void replace(T queued, T entry) {
+        ArrayDeque<T> queue = mQueues[queued.priority.ordinal()];
+        if (entry.priority.ordinal() < queued.priority.ordinal()) {
+            // Raised priority moves the slot to the more urgent class.
+            queue.remove(queued);
+            queue = mQueues[entry.priority.ordinal()];
+            queue.addLast(entry);
+        } else {
+            // Keep the position of the older frame, but with the more urgent of the two classes.
+            entry.priority = queued.priority;
+            replaceInPlace(queue, queued, entry);
+        }
+        entry.key = queued.key;
+        queued.key = NO_KEY;
+        mSlots.put(entry.key, entry);
+    }
+
+    private static <T> void replaceInPlace(ArrayDeque<T> queue, T queued, T entry) {
+        int size = queue.size();
+        for (int i = 0; i < size; i++) {
+            T e = queue.pollFirst();
+            queue.addLast(e == queued ? entry : e);
+        }
+    }
+
+    /**
+     * Takes the first entry of the most urgent class, waiting until there is one.
+     */
+    synchronized T take() throws InterruptedException {
+        while (mSize == 0) {
+            wait();
+        }
+        for (ArrayDeque<T> queue : mQueues) {
+            T entry = queue.pollFirst();
+            if (entry != null) {
+                mSize--;
+                if (entry.key != NO_KEY) {
+                    mSlots.remove(entry.key);
+                    entry.key = NO_KEY;
+                }
+                return entry;
+            }
+        }
+        throw new IllegalStateException("Queue size is " + mSize + " but all classes are empty");
+    }
+
+    /**
+     * Removes and returns any entry, or {@code null} if the queue is empty.
+     */
+    synchronized T poll() {
+        for (ArrayDeque<T> queue : mQueues) {
+            T entry = queue.pollFirst();
+            if (entry != null) {
+                mSize--;
+                if (entry.key != NO_KEY) {
+                    mSlots.remove(entry.key);
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized int size(Priority priority) {
+        return mQueues[priority.ordinal()].size();
+    }
+}